@@ -0,0 +1,8 @@
+# Pages are closed through private members of PdfiumCore, see PageHandleCache
+-keepclassmembers class com.shockwave.pdfium.PdfiumCore {
+    private native void nativeClosePage(long);
+    private static final java.lang.Object lock;
+}
+-keepclassmembers class com.shockwave.pdfium.PdfDocument {
+    final java.util.Map mNativePagesPtr;
+}
@@ -21,6 +21,7 @@ import android.animation.AnimatorListenerAdapter;
 import android.animation.ValueAnimator;
 import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.graphics.PointF;
+import android.os.Build;
 import android.view.animation.DecelerateInterpolator;
 import android.widget.OverScroller;
 
@@ -102,6 +103,28 @@ class AnimationManager {
         }
     }
 
+    boolean isFlinging() {
+        return flinging;
+    }
+
+    /** Get current fling velocity in px per second, 0 if it's not available on this platform */
+    float getFlingVelocity() {
+        if (!flinging || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return 0;
+        }
+        return scroller.getCurrVelocity();
+    }
+
+    /** Get X offset where current fling will end */
+    int getFlingFinalX() {
+        return scroller.getFinalX();
+    }
+
+    /** Get Y offset where current fling will end */
+    int getFlingFinalY() {
+        return scroller.getFinalY();
+    }
+
     public void stopAll() {
         if (animation != null) {
             animation.cancel();
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.graphics.Bitmap;
+
+import com.github.barteksc.pdfviewer.util.Util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of bitmaps released by {@link CacheManager}, which are reused by {@link RenderingHandler}
+ * instead of allocating a new bitmap for every rendered part.
+ * Bitmaps are bucketed by width, height and config, pool size is limited in bytes.
+ */
+class BitmapPool {
+
+    private final List<Bucket> buckets = new ArrayList<>();
+
+    private long maxBytes;
+
+    private long currentBytes = 0;
+
+    private int hits = 0;
+
+    private int misses = 0;
+
+    private int evictions = 0;
+
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get bitmap with given dimensions and config, from pool if possible. Reused bitmap is not cleared,
+     * as clearing costs a full pass over pixels for every part, so callers must overwrite all of its pixels,
+     * like Pdfium rendering and decoding from disk cache do.
+     *
+     * @return reused or newly created bitmap
+     * @throws IllegalArgumentException if bitmap cannot be created
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            Bucket bucket = findBucket(width, height, config);
+            if (bucket != null && !bucket.bitmaps.isEmpty()) {
+                bitmap = bucket.bitmaps.poll();
+                currentBytes -= Util.getBitmapByteCount(bitmap);
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        if (bitmap == null) {
+            return createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Return bitmap to pool, bitmap is recycled if it cannot be pooled
+     */
+    void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+
+        int size = Util.getBitmapByteCount(bitmap);
+        synchronized (this) {
+            if (size > maxBytes) {
+                bitmap.recycle();
+                evictions++;
+                return;
+            }
+            trimToSize(maxBytes - size);
+
+            Bucket bucket = findBucket(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            if (bucket == null) {
+                bucket = new Bucket(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+                buckets.add(bucket);
+            }
+            bucket.bitmaps.offer(bitmap);
+            currentBytes += size;
+        }
+    }
+
+    /**
+     * Recycle pooled bitmaps, starting from the biggest buckets, until pool size is not bigger than given size
+     *
+     * @param size size in bytes
+     */
+    synchronized void trimToSize(long size) {
+        while (currentBytes > size) {
+            Bucket biggest = null;
+            for (Bucket bucket : buckets) {
+                if (biggest == null || bucket.bitmaps.size() * bucket.bitmapBytes > biggest.bitmaps.size() * biggest.bitmapBytes) {
+                    biggest = bucket;
+                }
+            }
+            if (biggest == null || biggest.bitmaps.isEmpty()) {
+                break;
+            }
+            Bitmap bitmap = biggest.bitmaps.poll();
+            currentBytes -= Util.getBitmapByteCount(bitmap);
+            bitmap.recycle();
+            evictions++;
+            if (biggest.bitmaps.isEmpty()) {
+                buckets.remove(biggest);
+            }
+        }
+    }
+
+    /** Recycle all pooled bitmaps */
+    synchronized void clear() {
+        trimToSize(0);
+        buckets.clear();
+        currentBytes = 0;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    synchronized int getHitCount() {
+        return hits;
+    }
+
+    synchronized int getMissCount() {
+        return misses;
+    }
+
+    synchronized int getEvictionCount() {
+        return evictions;
+    }
+
+    /** Allocate a new bitmap when none can be reused */
+    Bitmap createBitmap(int width, int height, Bitmap.Config config) {
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    private Bucket findBucket(int width, int height, Bitmap.Config config) {
+        for (int i = 0; i < buckets.size(); i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket.width == width && bucket.height == height && bucket.config == config) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    private static class Bucket {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+        final int bitmapBytes;
+        final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+
+        Bucket(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+            this.bitmapBytes = width * height * (config == Bitmap.Config.ARGB_8888 ? 4 : 2);
+        }
+    }
+}
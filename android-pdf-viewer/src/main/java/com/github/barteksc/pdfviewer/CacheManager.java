@@ -16,176 +16,559 @@
 package com.github.barteksc.pdfviewer;
 
 import android.graphics.RectF;
-import android.support.annotation.Nullable;
 
 import com.github.barteksc.pdfviewer.model.PagePart;
+import com.github.barteksc.pdfviewer.util.Constants;
+import com.github.barteksc.pdfviewer.util.Util;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.PriorityQueue;
 
-import static com.github.barteksc.pdfviewer.util.Constants.Cache.CACHE_SIZE;
 import static com.github.barteksc.pdfviewer.util.Constants.Cache.THUMBNAILS_CACHE_SIZE;
 
+/**
+ * Cache of rendered parts. Parts are indexed by {@link TileKey}, so lookup, promotion and removal
+ * are constant time. Passive parts are evicted first, those of zoom levels far from the current one
+ * before the others, then in insertion order. Active parts are evicted by descending cache order,
+ * so parts loaded last, farthest from the visible area, go first.
+ * <p>
+ * Parts form a pyramid of zoom levels, see {@link #getZoomLevel(float)}. Parts of other levels
+ * are drawn scaled, below parts of higher levels, until parts of the current level are rendered.
+ * <p>
+ * Thumbnails are kept in least recently used order. Capacity of thumbnails cache is set by loader
+ * to the number of loaded pages, so thumbnails of pages on screen are not evicted by each other,
+ * but their size is also limited by {@link Constants.Cache#THUMBNAILS_MEMORY_RATIO} of the parts cache size.
+ * <p>
+ * Lists of parts to draw are snapshotted only when cache content changes, so drawing
+ * a frame doesn't allocate. Snapshots are sorted by page, so parts of visible pages
+ * can be found with {@link #findFirstPartOfPage(List, int)} without visiting other parts.
+ */
 class CacheManager {
 
-    private final PriorityQueue<PagePart> passiveCache;
+    private final LinkedHashMap<TileKey, PagePart> passiveCache;
 
-    private final PriorityQueue<PagePart> activeCache;
+    private final LinkedHashMap<TileKey, PagePart> activeCache;
 
-    private final List<PagePart> thumbnails;
+    private final LinkedHashMap<TileKey, PagePart> thumbnails;
 
     private final Object passiveActiveLock = new Object();
 
-    private final PagePartComparator orderComparator = new PagePartComparator();
+    /** Orders parts by page and then by zoom level, so finer parts are drawn over coarser ones */
+    private static final Comparator<PagePart> PAGE_COMPARATOR = new Comparator<PagePart>() {
+        @Override
+        public int compare(PagePart part1, PagePart part2) {
+            if (part1.getPage() != part2.getPage()) {
+                return part1.getPage() < part2.getPage() ? -1 : 1;
+            }
+            return part1.getLevel() < part2.getLevel() ? -1 : (part1.getLevel() == part2.getLevel() ? 0 : 1);
+        }
+    };
+
+    /** Orders parts by descending cache order, so parts loaded last are evicted first */
+    private static final Comparator<PagePart> EVICTION_COMPARATOR = new Comparator<PagePart>() {
+        @Override
+        public int compare(PagePart part1, PagePart part2) {
+            return part1.getCacheOrder() > part2.getCacheOrder() ? -1
+                    : (part1.getCacheOrder() == part2.getCacheOrder() ? 0 : 1);
+        }
+    };
+
+    /** Parts sorted for eviction, guarded by {@link #passiveActiveLock} */
+    private final ArrayList<PagePart> evictionParts = new ArrayList<>();
+
+    /** Key reused for lookups, guarded by {@link #passiveActiveLock} */
+    private final TileKey partKey = new TileKey();
+
+    /** Key reused for lookups, guarded by {@link #thumbnails} */
+    private final TileKey thumbnailKey = new TileKey();
+
+    private volatile BitmapPool bitmapPool;
+
+    /** Maximum size of cached parts bitmaps, in bytes */
+    private volatile long maxBytes;
+
+    /** Current size of cached parts bitmaps, in bytes */
+    private long currentBytes = 0;
+
+    /** Zoom level of parts currently loaded, guarded by {@link #passiveActiveLock} */
+    private int currentLevel = 0;
+
+    /** Number of parts found in cache by loader, guarded by {@link #passiveActiveLock} */
+    private int hits = 0;
+
+    /** Number of parts not found in cache by loader, guarded by {@link #passiveActiveLock} */
+    private int misses = 0;
+
+    /** Number of evicted parts, guarded by {@link #passiveActiveLock} */
+    private int evictions = 0;
+
+    /** Incremented on every change of parts, guarded by {@link #passiveActiveLock} */
+    private int partsVersion = 0;
 
-    public CacheManager() {
-        activeCache = new PriorityQueue<>(CACHE_SIZE, orderComparator);
-        passiveCache = new PriorityQueue<>(CACHE_SIZE, orderComparator);
-        thumbnails = new ArrayList<>();
+    /** Maximum number of cached thumbnails, guarded by {@link #thumbnails} */
+    private int thumbnailsCapacity = THUMBNAILS_CACHE_SIZE;
+
+    /** Current size of cached thumbnails bitmaps, in bytes, guarded by {@link #thumbnails} */
+    private long thumbnailsBytes = 0;
+
+    /** Incremented on every change of thumbnails, guarded by {@link #thumbnails} */
+    private int thumbnailsVersion = 0;
+
+    /** Parts to draw sorted by page, passive first, rebuilt when {@link #partsVersion} changes */
+    private final ArrayList<PagePart> drawParts = new ArrayList<>();
+
+    private int drawPartsVersion = -1;
+
+    /** Thumbnails to draw sorted by page, rebuilt when {@link #thumbnailsVersion} changes */
+    private final ArrayList<PagePart> drawThumbnails = new ArrayList<>();
+
+    private int drawThumbnailsVersion = -1;
+
+    public CacheManager(BitmapPool bitmapPool, long maxBytes) {
+        this.bitmapPool = bitmapPool;
+        this.maxBytes = maxBytes;
+        activeCache = new LinkedHashMap<>();
+        passiveCache = new LinkedHashMap<>();
+        thumbnails = new LinkedHashMap<>(16, 0.75f, true);
     }
 
-    public void cachePart(PagePart part) {
+    /**
+     * Add rendered part to cache, replacing the same part or its preview if it's already cached
+     *
+     * @return false if the same part was already cached
+     */
+    public boolean cachePart(PagePart part) {
+        int partBytes = Util.getBitmapByteCount(part.getRenderedBitmap());
         synchronized (passiveActiveLock) {
+            partKey.set(part);
+            if (part.isPreview() && (activeCache.containsKey(partKey) || passiveCache.containsKey(partKey))) {
+                // Never replace full resolution part or other preview with preview
+                bitmapPool.put(part.getRenderedBitmap());
+                return false;
+            }
+
+            // Replace part rendered again
+            PagePart old = activeCache.remove(partKey);
+            if (old == null) {
+                old = passiveCache.remove(partKey);
+            }
+            if (old != null) {
+                evict(old);
+            }
+
             // If cache too big, remove and recycle
-            makeAFreeSpace();
+            makeAFreeSpace(maxBytes - partBytes);
 
             // Then add part
-            activeCache.offer(part);
+            activeCache.put(partKey.copy(), part);
+            currentBytes += partBytes;
+            partsVersion++;
+            return old == null || old.isPreview();
         }
     }
 
     public void makeANewSet() {
         synchronized (passiveActiveLock) {
-            passiveCache.addAll(activeCache);
-            activeCache.clear();
+            if (!activeCache.isEmpty()) {
+                passiveCache.putAll(activeCache);
+                activeCache.clear();
+                partsVersion++;
+            }
         }
     }
 
-    private void makeAFreeSpace() {
+    /**
+     * Get zoom level of parts rendered for given zoom. Levels are spaced by
+     * {@link Constants#ZOOM_LEVELS_PER_OCTAVE} per doubling of zoom, level 0 is zoom 1.
+     */
+    static int getZoomLevel(float zoom) {
+        double level = Math.log(zoom) / Math.log(2) * Constants.ZOOM_LEVELS_PER_OCTAVE;
+        // tolerance keeps exact level zooms on their own level
+        return (int) Math.ceil(level - 1e-4);
+    }
+
+    /** Get zoom at which parts of given level are rendered, not lower than any zoom of the level */
+    static float getLevelZoom(int level) {
+        return (float) Math.pow(2, (double) level / Constants.ZOOM_LEVELS_PER_OCTAVE);
+    }
+
+    /** Set zoom level of parts currently loaded, used to choose parts to evict */
+    public void setCurrentLevel(int level) {
+        synchronized (passiveActiveLock) {
+            currentLevel = level;
+        }
+    }
+
+    /**
+     * Evict parts until cache size is not bigger than given size. Passive parts of levels farthest
+     * from the current one are evicted first, then remaining passive parts and active ones, eldest first.
+     *
+     * @param size size in bytes
+     */
+    private void makeAFreeSpace(long size) {
         synchronized (passiveActiveLock) {
-            while ((activeCache.size() + passiveCache.size()) >= CACHE_SIZE &&
-                    !passiveCache.isEmpty()) {
-                PagePart part = passiveCache.poll();
-                part.getRenderedBitmap().recycle();
+            if (currentBytes <= size) {
+                return;
+            }
+            int maxDistance = 0;
+            for (PagePart part : passiveCache.values()) {
+                maxDistance = Math.max(maxDistance, Math.abs(part.getLevel() - currentLevel));
             }
+            for (int distance = maxDistance; distance > 0 && currentBytes > size; distance--) {
+                evictLevels(passiveCache, size, distance);
+            }
+            evictEldest(passiveCache, size);
+            evictByOrder(activeCache, size);
+        }
+    }
+
+    /** Evict parts of levels at least given distance from current level */
+    private void evictLevels(LinkedHashMap<TileKey, PagePart> cache, long size, int distance) {
+        Iterator<PagePart> iterator = cache.values().iterator();
+        while (currentBytes > size && iterator.hasNext()) {
+            PagePart part = iterator.next();
+            if (Math.abs(part.getLevel() - currentLevel) >= distance) {
+                iterator.remove();
+                evict(part);
+            }
+        }
+    }
+
+    private void evictEldest(LinkedHashMap<TileKey, PagePart> cache, long size) {
+        Iterator<PagePart> iterator = cache.values().iterator();
+        while (currentBytes > size && iterator.hasNext()) {
+            PagePart part = iterator.next();
+            iterator.remove();
+            evict(part);
+        }
+    }
 
-            while ((activeCache.size() + passiveCache.size()) >= CACHE_SIZE &&
-                    !activeCache.isEmpty()) {
-                activeCache.poll().getRenderedBitmap().recycle();
+    private void evictByOrder(LinkedHashMap<TileKey, PagePart> cache, long size) {
+        if (currentBytes <= size || cache.isEmpty()) {
+            return;
+        }
+        evictionParts.addAll(cache.values());
+        Collections.sort(evictionParts, EVICTION_COMPARATOR);
+        for (PagePart part : evictionParts) {
+            if (currentBytes <= size) {
+                break;
             }
+            cache.remove(partKey.set(part));
+            evict(part);
         }
+        evictionParts.clear();
+    }
+
+    private void evict(PagePart part) {
+        partsVersion++;
+        evictions++;
+        currentBytes -= Util.getBitmapByteCount(part.getRenderedBitmap());
+        bitmapPool.put(part.getRenderedBitmap());
     }
 
-    public void cacheThumbnail(PagePart part) {
+    /** Change maximum size of cached parts, evicting parts and thumbnails if needed */
+    public void setMaxBytes(long maxBytes) {
+        synchronized (passiveActiveLock) {
+            this.maxBytes = maxBytes;
+            makeAFreeSpace(maxBytes);
+        }
         synchronized (thumbnails) {
-            // If cache too big, remove and recycle
-            while (thumbnails.size() >= THUMBNAILS_CACHE_SIZE) {
-                thumbnails.remove(0).getRenderedBitmap().recycle();
+            trimThumbnails(thumbnailsCapacity, getThumbnailsMaxBytes());
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getCurrentBytes() {
+        synchronized (passiveActiveLock) {
+            return currentBytes;
+        }
+    }
+
+    /**
+     * Get number of full size parts fitting into the cache,
+     * used to limit number of parts loaded at once
+     */
+    public int getPartsLimit(boolean bestQuality) {
+        long partBytes = (long) (Constants.PART_SIZE * Constants.PART_SIZE) * (bestQuality ? 4 : 2);
+        return (int) Math.max(1, maxBytes / partBytes);
+    }
+
+    /**
+     * Add rendered thumbnail to cache, if it's not cached yet
+     *
+     * @return false if the same thumbnail was already cached
+     */
+    public boolean cacheThumbnail(PagePart part) {
+        synchronized (thumbnails) {
+            // Return bitmap to pool if thumbnail is already cached
+            thumbnailKey.set(part);
+            if (thumbnails.containsKey(thumbnailKey)) {
+                bitmapPool.put(part.getRenderedBitmap());
+                return false;
             }
 
+            // If cache too big, remove least recently used thumbnails
+            trimThumbnails(thumbnailsCapacity - 1,
+                    getThumbnailsMaxBytes() - Util.getBitmapByteCount(part.getRenderedBitmap()));
+
             // Then add thumbnail
-            addWithoutDuplicates(thumbnails, part);
+            thumbnails.put(thumbnailKey.copy(), part);
+            thumbnailsBytes += Util.getBitmapByteCount(part.getRenderedBitmap());
+            thumbnailsVersion++;
+            return true;
         }
 
     }
 
-    public boolean upPartIfContained(int page, RectF pageRelativeBounds, int toOrder) {
-        PagePart fakePart = new PagePart(page, null, pageRelativeBounds, false, 0);
+    /**
+     * Set number of thumbnails kept in cache, least recently used thumbnails are evicted if needed
+     *
+     * @param capacity number of thumbnails, not less than {@link Constants.Cache#THUMBNAILS_CACHE_SIZE}
+     */
+    public void setThumbnailsCapacity(int capacity) {
+        synchronized (thumbnails) {
+            thumbnailsCapacity = Math.max(THUMBNAILS_CACHE_SIZE, capacity);
+            trimThumbnails(thumbnailsCapacity, getThumbnailsMaxBytes());
+        }
+    }
 
-        PagePart found;
+    /** Get maximum size of cached thumbnails bitmaps, in bytes */
+    public long getThumbnailsMaxBytes() {
+        return (long) (maxBytes * Constants.Cache.THUMBNAILS_MEMORY_RATIO);
+    }
+
+    /**
+     * Evict least recently used thumbnails until both limits are met.
+     * Must be called with {@link #thumbnails} locked
+     */
+    private void trimThumbnails(int size, long bytes) {
+        Iterator<PagePart> iterator = thumbnails.values().iterator();
+        while ((thumbnails.size() > size || thumbnailsBytes > bytes) && iterator.hasNext()) {
+            PagePart thumbnail = iterator.next();
+            iterator.remove();
+            thumbnailsBytes -= Util.getBitmapByteCount(thumbnail.getRenderedBitmap());
+            bitmapPool.put(thumbnail.getRenderedBitmap());
+            thumbnailsVersion++;
+        }
+    }
+
+    /** Get current size of cached thumbnails bitmaps, in bytes */
+    public long getThumbnailsBytes() {
+        synchronized (thumbnails) {
+            return thumbnailsBytes;
+        }
+    }
+
+    public boolean upPartIfContained(int page, RectF pageRelativeBounds, int level, int toOrder) {
         synchronized (passiveActiveLock) {
-            if ((found = find(passiveCache, fakePart)) != null) {
-                passiveCache.remove(found);
+            partKey.set(page, pageRelativeBounds, false, level);
+            PagePart found = passiveCache.remove(partKey);
+            if (found != null) {
                 found.setCacheOrder(toOrder);
-                activeCache.offer(found);
-                return true;
+                activeCache.put(partKey.copy(), found);
+                partsVersion++;
+                // preview is kept, but full resolution part still has to be rendered
+                return countLookup(!found.isPreview());
             }
 
-            return find(activeCache, fakePart) != null;
+            found = activeCache.get(partKey);
+            if (found != null) {
+                found.setCacheOrder(toOrder);
+            }
+            return countLookup(found != null && !found.isPreview());
+        }
+    }
+
+    private boolean countLookup(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return hit;
+    }
+
+    public int getHitCount() {
+        synchronized (passiveActiveLock) {
+            return hits;
+        }
+    }
+
+    public int getMissCount() {
+        synchronized (passiveActiveLock) {
+            return misses;
+        }
+    }
+
+    public int getEvictionCount() {
+        synchronized (passiveActiveLock) {
+            return evictions;
+        }
+    }
+
+    /** Return true if preview of the part with given key is cached */
+    public boolean containsPreview(TileKey key) {
+        synchronized (passiveActiveLock) {
+            PagePart part = activeCache.get(key);
+            if (part == null) {
+                part = passiveCache.get(key);
+            }
+            return part != null && part.isPreview();
         }
     }
 
     /**
-     * Return true if already contains the described PagePart
+     * Return true if already contains the described thumbnail, found thumbnail becomes most recently used
      */
     public boolean containsThumbnail(int page, RectF pageRelativeBounds) {
-        PagePart fakePart = new PagePart(page, null, pageRelativeBounds, true, 0);
         synchronized (thumbnails) {
-            for (PagePart part : thumbnails) {
-                if (part.equals(fakePart)) {
-                    return true;
+            return thumbnails.get(thumbnailKey.set(page, pageRelativeBounds, true, 0)) != null;
+        }
+    }
+
+    /**
+     * Get parts to draw. Returned list is reused and updated by next call after cache changes,
+     * so it should be used only on UI thread, which modifies the cache.
+     */
+    public List<PagePart> getPageParts() {
+        synchronized (passiveActiveLock) {
+            if (drawPartsVersion != partsVersion) {
+                drawParts.clear();
+                drawParts.ensureCapacity(passiveCache.size() + activeCache.size());
+                for (PagePart part : passiveCache.values()) {
+                    drawParts.add(part);
+                }
+                for (PagePart part : activeCache.values()) {
+                    drawParts.add(part);
                 }
+                // sort is stable, so passive parts are still drawn below active ones of the same level
+                Collections.sort(drawParts, PAGE_COMPARATOR);
+                drawPartsVersion = partsVersion;
             }
-            return false;
+            return drawParts;
         }
     }
 
     /**
-     * Add part if it doesn't exist, recycle bitmap otherwise
+     * Get thumbnails to draw. Returned list is reused and updated by next call after cache changes,
+     * so it should be used only on UI thread, which modifies the cache.
      */
-    private void addWithoutDuplicates(Collection<PagePart> collection, PagePart newPart) {
-        for (PagePart part : collection) {
-            if (part.equals(newPart)) {
-                newPart.getRenderedBitmap().recycle();
-                return;
+    public List<PagePart> getThumbnails() {
+        synchronized (thumbnails) {
+            if (drawThumbnailsVersion != thumbnailsVersion) {
+                drawThumbnails.clear();
+                for (PagePart part : thumbnails.values()) {
+                    drawThumbnails.add(part);
+                }
+                Collections.sort(drawThumbnails, PAGE_COMPARATOR);
+                drawThumbnailsVersion = thumbnailsVersion;
             }
+            return drawThumbnails;
         }
-        collection.add(newPart);
     }
 
-    @Nullable
-    private static PagePart find(PriorityQueue<PagePart> vector, PagePart fakePart) {
-        for (PagePart part : vector) {
-            if (part.equals(fakePart)) {
-                return part;
+    /**
+     * Find first part of given page or of the next cached page in list sorted by page,
+     * e.g. returned by {@link #getPageParts()} or {@link #getThumbnails()}
+     *
+     * @return index of the part, size of the list if there are no such parts
+     */
+    public static int findFirstPartOfPage(List<PagePart> parts, int page) {
+        int low = 0;
+        int high = parts.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (parts.get(mid).getPage() < page) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
         }
-        return null;
+        return low;
     }
 
-    public List<PagePart> getPageParts() {
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /** Set pool receiving evicted bitmaps, e.g. pool shared by views */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Evict parts and thumbnails of given pages, e.g. rendered at estimated sizes of pages
+     *
+     * @param pages pages to evict, indexed by page
+     */
+    public void evictPages(boolean[] pages) {
         synchronized (passiveActiveLock) {
-            List<PagePart> parts = new ArrayList<>(passiveCache);
-            parts.addAll(activeCache);
-            return parts;
+            evictPages(passiveCache, pages);
+            evictPages(activeCache, pages);
+        }
+        synchronized (thumbnails) {
+            Iterator<PagePart> iterator = thumbnails.values().iterator();
+            while (iterator.hasNext()) {
+                PagePart thumbnail = iterator.next();
+                if (thumbnail.getPage() < pages.length && pages[thumbnail.getPage()]) {
+                    iterator.remove();
+                    thumbnailsBytes -= Util.getBitmapByteCount(thumbnail.getRenderedBitmap());
+                    bitmapPool.put(thumbnail.getRenderedBitmap());
+                    thumbnailsVersion++;
+                }
+            }
         }
     }
 
-    public List<PagePart> getThumbnails() {
-        synchronized (thumbnails) {
-            return thumbnails;
+    private void evictPages(LinkedHashMap<TileKey, PagePart> cache, boolean[] pages) {
+        Iterator<PagePart> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            PagePart part = iterator.next();
+            if (part.getPage() < pages.length && pages[part.getPage()]) {
+                iterator.remove();
+                evict(part);
+            }
+        }
+    }
+
+    /** Evict all passive parts, which are not used by currently loaded pages */
+    public void evictPassiveParts() {
+        synchronized (passiveActiveLock) {
+            for (PagePart part : passiveCache.values()) {
+                evict(part);
+            }
+            passiveCache.clear();
         }
     }
 
+    /** Release all cached bitmaps to the bitmap pool */
     public void recycle() {
         synchronized (passiveActiveLock) {
-            for (PagePart part : passiveCache) {
-                part.getRenderedBitmap().recycle();
+            for (PagePart part : passiveCache.values()) {
+                bitmapPool.put(part.getRenderedBitmap());
             }
             passiveCache.clear();
-            for (PagePart part : activeCache) {
-                part.getRenderedBitmap().recycle();
+            for (PagePart part : activeCache.values()) {
+                bitmapPool.put(part.getRenderedBitmap());
             }
             activeCache.clear();
+            currentBytes = 0;
+            partsVersion++;
         }
         synchronized (thumbnails) {
-            for (PagePart part : thumbnails) {
-                part.getRenderedBitmap().recycle();
+            for (PagePart part : thumbnails.values()) {
+                bitmapPool.put(part.getRenderedBitmap());
             }
             thumbnails.clear();
-        }
-    }
-
-    class PagePartComparator implements Comparator<PagePart> {
-        @Override
-        public int compare(PagePart part1, PagePart part2) {
-            if (part1.getCacheOrder() == part2.getCacheOrder()) {
-                return 0;
-            }
-            return part1.getCacheOrder() > part2.getCacheOrder() ? 1 : -1;
+            thumbnailsBytes = 0;
+            thumbnailsVersion++;
         }
     }
 
@@ -15,14 +15,24 @@
  */
 package com.github.barteksc.pdfviewer;
 
+import android.graphics.Bitmap;
 import android.os.AsyncTask;
+import android.util.Log;
 
 import com.github.barteksc.pdfviewer.source.DocumentSource;
+import com.github.barteksc.pdfviewer.util.PageSizeCalculator;
 import com.shockwave.pdfium.PdfDocument;
 import com.shockwave.pdfium.PdfiumCore;
 import com.shockwave.pdfium.util.Size;
+import com.shockwave.pdfium.util.SizeF;
 
-class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
+/**
+ * Opens document and creates {@link PdfFile}. If first page preview is enabled, default page is rendered
+ * to a screen sized bitmap and published before sizes of all pages are read.
+ */
+class DecodingAsyncTask extends AsyncTask<Void, Bitmap, Throwable> {
+
+    private static final String TAG = DecodingAsyncTask.class.getSimpleName();
 
     private boolean cancelled;
 
@@ -33,6 +43,11 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
     private DocumentSource docSource;
     private int[] userPages;
     private PdfFile pdfFile;
+    private String documentId;
+    /** Page shown in first page preview, -1 if preview was not rendered */
+    private int firstPage = -1;
+    /** Document page opened to render first page preview, -1 if none */
+    private int openedDocPage = -1;
 
     DecodingAsyncTask(DocumentSource docSource, String password, int[] userPages, PDFView pdfView, PdfiumCore pdfiumCore) {
         this.docSource = docSource;
@@ -47,8 +62,36 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
     protected Throwable doInBackground(Void... params) {
         try {
             PdfDocument pdfDocument = docSource.createSource(pdfView.getContext(), pdfiumCore, password);
+
+            if (pdfView.isFirstPagePreview()) {
+                renderFirstPage(pdfDocument);
+            }
+
+            PageGeometryCache geometryCache = pdfView.getPageGeometryCache();
+            if (geometryCache != null || pdfView.isDiskCaching()) {
+                documentId = docSource.getDocumentId(pdfView.getContext());
+            }
+            Size[] cachedPageSizes = null;
+            if (geometryCache != null && documentId != null) {
+                cachedPageSizes = geometryCache.load(documentId);
+                if (cachedPageSizes != null && cachedPageSizes.length != pdfiumCore.getPageCount(pdfDocument)) {
+                    cachedPageSizes = null;
+                }
+            }
+
             pdfFile = new PdfFile(pdfiumCore, pdfDocument, pdfView.getPageFitPolicy(), getViewSize(),
-                    userPages, pdfView.isSwipeVertical(), pdfView.getSpacingPx());
+                    userPages, pdfView.isSwipeVertical(), pdfView.getSpacingPx(), pdfView.isLazyPageSizes(),
+                    cachedPageSizes);
+            if (openedDocPage >= 0) {
+                pdfFile.markPageOpened(openedDocPage);
+            }
+
+            if (geometryCache != null && documentId != null && cachedPageSizes == null) {
+                Size[] pageSizes = pdfFile.getDocumentPageSizes();
+                if (pageSizes != null) {
+                    geometryCache.save(documentId, pageSizes);
+                }
+            }
             return null;
         } catch (Throwable t) {
             return t;
@@ -59,6 +102,53 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
         return new Size(pdfView.getWidth(), pdfView.getHeight());
     }
 
+    /** Render default page fitted to view and publish it, only size of this page is read */
+    private void renderFirstPage(PdfDocument pdfDocument) {
+        Size viewSize = getViewSize();
+        if (viewSize.getWidth() <= 0 || viewSize.getHeight() <= 0) {
+            return;
+        }
+        int pagesCount = userPages != null ? userPages.length : pdfiumCore.getPageCount(pdfDocument);
+        if (pagesCount <= 0) {
+            return;
+        }
+        int page = Math.max(0, Math.min(pdfView.getDefaultPage(), pagesCount - 1));
+        int docPage = userPages != null ? userPages[page] : page;
+
+        Size pageSize = pdfiumCore.getPageSize(pdfDocument, docPage);
+        SizeF fitted = new PageSizeCalculator(pdfView.getPageFitPolicy(), pageSize, pageSize, viewSize)
+                .calculate(pageSize);
+        int width = Math.round(fitted.getWidth());
+        int height = Math.round(fitted.getHeight());
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = Bitmap.createBitmap(width, height,
+                    pdfView.isBestQuality() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565);
+        } catch (IllegalArgumentException | OutOfMemoryError e) {
+            Log.e(TAG, "Cannot create first page bitmap", e);
+            return;
+        }
+        pdfiumCore.openPage(pdfDocument, docPage);
+        openedDocPage = docPage;
+        pdfiumCore.renderPageBitmap(pdfDocument, bitmap, docPage, 0, 0, width, height,
+                pdfView.isAnnotationRendering());
+        firstPage = page;
+        publishProgress(bitmap);
+    }
+
+    @Override
+    protected void onProgressUpdate(Bitmap... values) {
+        if (cancelled) {
+            values[0].recycle();
+            return;
+        }
+        pdfView.onFirstPageRendered(values[0], firstPage);
+    }
+
     @Override
     protected void onPostExecute(Throwable t) {
         if (t != null) {
@@ -66,7 +156,7 @@ class DecodingAsyncTask extends AsyncTask<Void, Void, Throwable> {
             return;
         }
         if (!cancelled) {
-            pdfView.loadComplete(pdfFile);
+            pdfView.loadComplete(pdfFile, documentId);
         }
     }
 
@@ -0,0 +1,527 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+import android.util.Log;
+
+import com.github.barteksc.pdfviewer.util.Util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Second level cache of rendered parts, stored as compressed files, so parts don't have to be rendered again
+ * after {@link CacheManager} is cleared, e.g. when view is recreated.
+ * <p>
+ * Entries are kept in least recently used order and the oldest ones are deleted when total size exceeds limit.
+ * All file operations except reading tiles run on a single background thread. Index is persisted in a journal
+ * of {@code PUT}, {@code READ} and {@code DEL} lines, which is replayed on start and compacted when it grows;
+ * tile files are written to a temporary file and renamed before they are added to the journal,
+ * so files left by interrupted writes are never read and are deleted on start.
+ * <p>
+ * There is one instance per directory in the process, shared by views with {@link #acquire(File, long)}
+ * and {@link #release()}, so instances never delete files written by each other or share a journal.
+ * Rendered parts are copied into bitmaps from {@link BitmapPool} on the calling thread and compressed
+ * on the background thread, which returns the copies to the pool.
+ */
+class DiskTileCache {
+
+    private static final String TAG = DiskTileCache.class.getSimpleName();
+
+    private static final String JOURNAL_FILE = "journal";
+
+    private static final String JOURNAL_TMP_FILE = "journal.tmp";
+
+    private static final String JOURNAL_MAGIC = "pdfviewer.DiskTileCache";
+
+    private static final String JOURNAL_VERSION = "1";
+
+    private static final String PUT = "PUT";
+
+    private static final String READ = "READ";
+
+    private static final String DEL = "DEL";
+
+    private static final String TILE_SUFFIX = ".tile";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** Number of redundant journal lines, above which journal is rewritten */
+    private static final int JOURNAL_COMPACT_THRESHOLD = 2000;
+
+    /** Maximum number of parts waiting to be compressed, further parts are not stored */
+    private static final int MAX_PENDING_WRITES = 16;
+
+    /** Replaces all pixels of the copy, so a bitmap taken from pool doesn't have to be cleared first */
+    private static final Paint COPY_PAINT = new Paint();
+
+    static {
+        COPY_PAINT.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /** Open caches by directory path, guarded by itself */
+    private static final Map<String, DiskTileCache> instances = new HashMap<>();
+
+    /** Number of views using this cache, guarded by {@link #instances} */
+    private int references = 0;
+
+    /** Number of parts copied but not compressed yet, guarded by {@link #entries} */
+    private int pendingWrites = 0;
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    /** File names of tiles and their sizes in access order, guarded by itself */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75f, true);
+
+    /** Total size of tiles, guarded by {@link #entries} */
+    private long currentBytes = 0;
+
+    /** Used only by executor thread */
+    private Writer journalWriter;
+
+    /** Number of journal lines not needed to restore index, used only by executor thread */
+    private int redundantJournalLines = 0;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "PDF disk cache");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * Get cache stored in given directory, opening it if it's not used yet.
+     * Every call must be paired with {@link #release()}.
+     */
+    static DiskTileCache acquire(File directory, long maxBytes) {
+        synchronized (instances) {
+            String path = directory.getAbsolutePath();
+            DiskTileCache cache = instances.get(path);
+            if (cache == null) {
+                cache = new DiskTileCache(directory, maxBytes);
+                instances.put(path, cache);
+            }
+            cache.references++;
+            return cache;
+        }
+    }
+
+    /** Release cache acquired with {@link #acquire(File, long)}, it's closed when no view uses it */
+    void release() {
+        synchronized (instances) {
+            if (--references > 0) {
+                return;
+            }
+            instances.remove(directory.getAbsolutePath());
+        }
+        close();
+    }
+
+    private DiskTileCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    /**
+     * Build cache key of a rendered part
+     *
+     * @param documentId id of the document, see {@link com.github.barteksc.pdfviewer.source.DocumentSource#getDocumentId}
+     * @param docPage    page index in document
+     * @param bounds     page relative bounds of the part
+     * @param width      width of rendered bitmap
+     * @param height     height of rendered bitmap
+     */
+    static String buildKey(String documentId, int docPage, RectF bounds, int width, int height,
+                           Bitmap.Config config, boolean annotationRendering) {
+        String key = documentId + "|" + docPage
+                + "|" + quantize(bounds.left) + "," + quantize(bounds.top)
+                + "," + quantize(bounds.right) + "," + quantize(bounds.bottom)
+                + "|" + width + "x" + height + "|" + config + "|" + annotationRendering;
+        return Util.hash(key);
+    }
+
+    /**
+     * Decode cached part, may be called from any thread
+     *
+     * @param reuse mutable bitmap with size and config of the cached part, into which it's decoded
+     * @return true if part was decoded into given bitmap
+     */
+    boolean get(String key, Bitmap reuse) {
+        synchronized (entries) {
+            if (entries.get(key) == null) {
+                return false;
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inBitmap = reuse;
+        options.inMutable = true;
+        options.inPreferredConfig = reuse.getConfig();
+        options.inSampleSize = 1;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(new File(directory, key + TILE_SUFFIX).getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // decoded image doesn't fit into reused bitmap
+            bitmap = null;
+        }
+        if (bitmap != reuse) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            // reused bitmap may be partially decoded
+            reuse.eraseColor(Color.TRANSPARENT);
+            remove(key);
+            return false;
+        }
+
+        final String readKey = key;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                appendJournal(READ, readKey, 0);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Copy rendered part into a bitmap from given pool on calling thread, then compress and store it
+     * in background and return the copy to the pool. Part is skipped if too many parts are waiting already.
+     */
+    void put(final String key, Bitmap bitmap, final BitmapPool bitmapPool) {
+        synchronized (entries) {
+            if (entries.containsKey(key) || pendingWrites >= MAX_PENDING_WRITES) {
+                return;
+            }
+            pendingWrites++;
+        }
+        final Bitmap copy;
+        try {
+            copy = bitmapPool.get(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        } catch (IllegalArgumentException | OutOfMemoryError e) {
+            onWriteFinished();
+            return;
+        }
+        new Canvas(copy).drawBitmap(bitmap, 0, 0, COPY_PAINT);
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compressAndWrite(key, copy);
+                } finally {
+                    bitmapPool.put(copy);
+                    onWriteFinished();
+                }
+            }
+        };
+        try {
+            executor.execute(write);
+        } catch (RejectedExecutionException e) {
+            // cache closed
+            bitmapPool.put(copy);
+            onWriteFinished();
+        }
+    }
+
+    private void onWriteFinished() {
+        synchronized (entries) {
+            pendingWrites--;
+        }
+    }
+
+    /** Called on executor thread */
+    private void compressAndWrite(String key, Bitmap bitmap) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // quality is ignored for lossless PNG
+        if (!bitmap.compress(Bitmap.CompressFormat.PNG, 0, out)) {
+            return;
+        }
+        byte[] data = out.toByteArray();
+        if (data.length > maxBytes) {
+            return;
+        }
+        write(key, data);
+    }
+
+    /** Stop background thread, cache cannot be used afterwards */
+    private void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeJournal();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // cache closed
+        }
+    }
+
+    long getCurrentBytes() {
+        synchronized (entries) {
+            return currentBytes;
+        }
+    }
+
+    private void remove(final String key) {
+        synchronized (entries) {
+            Long size = entries.remove(key);
+            if (size == null) {
+                return;
+            }
+            currentBytes -= size;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                new File(directory, key + TILE_SUFFIX).delete();
+                appendJournal(DEL, key, 0);
+            }
+        });
+    }
+
+    private void open() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create cache directory " + directory);
+            return;
+        }
+        File journal = new File(directory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read journal, cache is cleared", e);
+                synchronized (entries) {
+                    entries.clear();
+                    currentBytes = 0;
+                }
+            }
+        }
+        deleteUnknownFiles();
+        trimToSize();
+        rewriteJournal();
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journal));
+        try {
+            if (!JOURNAL_MAGIC.equals(reader.readLine()) || !JOURNAL_VERSION.equals(reader.readLine())) {
+                throw new IOException("Unknown journal format");
+            }
+            String line;
+            synchronized (entries) {
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    if (parts.length == 3 && PUT.equals(parts[0])) {
+                        long size;
+                        try {
+                            size = Long.parseLong(parts[2]);
+                        } catch (NumberFormatException e) {
+                            // line interrupted by crash
+                            continue;
+                        }
+                        Long previous = entries.put(parts[1], size);
+                        currentBytes += size - (previous != null ? previous : 0);
+                    } else if (parts.length == 2 && READ.equals(parts[0])) {
+                        entries.get(parts[1]);
+                    } else if (parts.length == 2 && DEL.equals(parts[0])) {
+                        Long previous = entries.remove(parts[1]);
+                        currentBytes -= previous != null ? previous : 0;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Delete tiles without journal entries and journal entries without tiles */
+    private void deleteUnknownFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        synchronized (entries) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(JOURNAL_FILE)) {
+                    continue;
+                }
+                if (!name.endsWith(TILE_SUFFIX)
+                        || !entries.containsKey(name.substring(0, name.length() - TILE_SUFFIX.length()))) {
+                    file.delete();
+                }
+            }
+            Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (!new File(directory, entry.getKey() + TILE_SUFFIX).exists()) {
+                    currentBytes -= entry.getValue();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void write(String key, byte[] data) {
+        synchronized (entries) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+        }
+        File tmpFile = new File(directory, key + TMP_SUFFIX);
+        try {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(new File(directory, key + TILE_SUFFIX))) {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write tile", e);
+            tmpFile.delete();
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, (long) data.length);
+            currentBytes += data.length;
+        }
+        appendJournal(PUT, key, data.length);
+        trimToSize();
+    }
+
+    /** Delete least recently used tiles until total size is within limit, called on executor thread */
+    private void trimToSize() {
+        while (true) {
+            String key;
+            synchronized (entries) {
+                if (currentBytes <= maxBytes || entries.isEmpty()) {
+                    return;
+                }
+                Map.Entry<String, Long> eldest = entries.entrySet().iterator().next();
+                key = eldest.getKey();
+                currentBytes -= eldest.getValue();
+                entries.remove(key);
+            }
+            new File(directory, key + TILE_SUFFIX).delete();
+            appendJournal(DEL, key, 0);
+        }
+    }
+
+    private void appendJournal(String operation, String key, long size) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(operation + " " + key + (PUT.equals(operation) ? " " + size : "") + "\n");
+            journalWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write journal", e);
+        }
+        if (!PUT.equals(operation)) {
+            redundantJournalLines++;
+            if (redundantJournalLines > JOURNAL_COMPACT_THRESHOLD) {
+                rewriteJournal();
+            }
+        }
+    }
+
+    /** Write journal with current index only, replacing the old one */
+    private void rewriteJournal() {
+        closeJournal();
+        File journal = new File(directory, JOURNAL_FILE);
+        File tmpJournal = new File(directory, JOURNAL_TMP_FILE);
+        try {
+            Writer writer = new FileWriter(tmpJournal);
+            try {
+                writer.write(JOURNAL_MAGIC + "\n" + JOURNAL_VERSION + "\n");
+                synchronized (entries) {
+                    // entries are iterated from least recently used, so order is restored on replay
+                    for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                        writer.write(PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tmpJournal.renameTo(journal)) {
+                throw new IOException("Cannot rename " + tmpJournal);
+            }
+            journalWriter = new FileWriter(journal, true);
+            redundantJournalLines = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write journal", e);
+            tmpJournal.delete();
+        }
+    }
+
+    private void closeJournal() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            journalWriter = null;
+        }
+    }
+
+    private static int quantize(float value) {
+        return Math.round(value * (1 << 16));
+    }
+}
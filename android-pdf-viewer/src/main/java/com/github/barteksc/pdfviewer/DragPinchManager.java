@@ -138,6 +138,7 @@ class DragPinchManager implements GestureDetector.OnGestureListener, GestureDete
     @Override
     public boolean onDown(MotionEvent e) {
         animationManager.stopFling();
+        pdfView.requestRenderingFocus();
         return true;
     }
 
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+/**
+ * Collects rendering statistics exposed as {@link RenderingMetrics}. Render latencies are recorded
+ * by rendering workers, other events on UI thread.
+ */
+class MetricsCollector {
+
+    private final int[] renderLatencyHistogram = new int[RenderingMetrics.HISTOGRAM_BUCKETS];
+
+    private final SparseArray<int[]> pageRenderLatencyHistograms = new SparseArray<>();
+
+    private int renderCount = 0;
+
+    private long totalRenderTime = 0;
+
+    private final int[] lockWaitHistogram = new int[RenderingMetrics.HISTOGRAM_BUCKETS];
+
+    private long totalLockWaitTime = 0;
+
+    private int maxQueueDepth = 0;
+
+    private long loadStartTime = -1;
+
+    private long timeToFirstTile = -1;
+
+    private long timeToFirstPixel = -1;
+
+    /** Time of loading pages which requested visible parts, -1 if screen is sharp */
+    private long sharpPendingSince = -1;
+
+    private long timeToSharp = -1;
+
+    synchronized void reset() {
+        for (int i = 0; i < renderLatencyHistogram.length; i++) {
+            renderLatencyHistogram[i] = 0;
+        }
+        pageRenderLatencyHistograms.clear();
+        renderCount = 0;
+        totalRenderTime = 0;
+        for (int i = 0; i < lockWaitHistogram.length; i++) {
+            lockWaitHistogram[i] = 0;
+        }
+        totalLockWaitTime = 0;
+        maxQueueDepth = 0;
+        loadStartTime = -1;
+        timeToFirstTile = -1;
+        timeToFirstPixel = -1;
+        sharpPendingSince = -1;
+        timeToSharp = -1;
+    }
+
+    synchronized void onLoadStarted() {
+        reset();
+        loadStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /** Called when the first content of the document, tile or first page preview, is shown */
+    synchronized void onFirstPixel() {
+        if (timeToFirstPixel < 0 && loadStartTime >= 0) {
+            timeToFirstPixel = SystemClock.elapsedRealtime() - loadStartTime;
+        }
+    }
+
+    /**
+     * Record Pdfium render of given page
+     *
+     * @param nanos         time of Pdfium rendering in nanoseconds
+     * @param lockWaitNanos time spent waiting for document and Pdfium locks before rendering, in nanoseconds
+     */
+    synchronized void recordRender(int page, long nanos, long lockWaitNanos) {
+        long lockWaitMillis = lockWaitNanos / 1000000;
+        lockWaitHistogram[RenderingMetrics.getBucket(lockWaitMillis)]++;
+        totalLockWaitTime += lockWaitMillis;
+        long millis = nanos / 1000000;
+        int bucket = RenderingMetrics.getBucket(millis);
+        renderLatencyHistogram[bucket]++;
+        int[] pageHistogram = pageRenderLatencyHistograms.get(page);
+        if (pageHistogram == null) {
+            pageHistogram = new int[RenderingMetrics.HISTOGRAM_BUCKETS];
+            pageRenderLatencyHistograms.put(page, pageHistogram);
+        }
+        pageHistogram[bucket]++;
+        renderCount++;
+        totalRenderTime += millis;
+    }
+
+    /**
+     * Called after pages were loaded
+     *
+     * @param queueDepth            number of queued rendering tasks
+     * @param visiblePartsRequested true if some visible parts are not rendered yet
+     */
+    synchronized void onPagesLoaded(int queueDepth, boolean visiblePartsRequested) {
+        maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+        if (visiblePartsRequested && sharpPendingSince < 0) {
+            sharpPendingSince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Called after rendered part was cached
+     *
+     * @param visiblePartsRequested true if some visible parts are still queued, rendered or waiting to be cached
+     * @return true if screen just became sharp
+     */
+    synchronized boolean onPartRendered(boolean visiblePartsRequested) {
+        long now = SystemClock.elapsedRealtime();
+        if (timeToFirstTile < 0 && loadStartTime >= 0) {
+            timeToFirstTile = now - loadStartTime;
+        }
+        if (timeToFirstPixel < 0 && loadStartTime >= 0) {
+            timeToFirstPixel = now - loadStartTime;
+        }
+        if (!visiblePartsRequested && sharpPendingSince >= 0) {
+            timeToSharp = now - sharpPendingSince;
+            sharpPendingSince = -1;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized RenderingMetrics snapshot(int queueDepth, int cacheHits, int cacheMisses, int cacheEvictions,
+                                           long cachedBytes, long pooledBytes, int wastedRenders, int cancelledTasks) {
+        SparseArray<int[]> pageHistograms = new SparseArray<>(pageRenderLatencyHistograms.size());
+        for (int i = 0; i < pageRenderLatencyHistograms.size(); i++) {
+            pageHistograms.put(pageRenderLatencyHistograms.keyAt(i), pageRenderLatencyHistograms.valueAt(i).clone());
+        }
+        return new RenderingMetrics(renderCount, totalRenderTime, renderLatencyHistogram.clone(), pageHistograms,
+                totalLockWaitTime, lockWaitHistogram.clone(),
+                queueDepth, Math.max(maxQueueDepth, queueDepth), cacheHits, cacheMisses, cacheEvictions,
+                cachedBytes, pooledBytes, wastedRenders, cancelledTasks, timeToFirstTile, timeToFirstPixel, timeToSharp);
+    }
+}
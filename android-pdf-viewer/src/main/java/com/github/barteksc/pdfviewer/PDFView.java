@@ -15,7 +15,9 @@
  */
 package com.github.barteksc.pdfviewer;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -28,7 +30,7 @@ import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.HandlerThread;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.widget.RelativeLayout;
@@ -44,11 +46,14 @@ import com.github.barteksc.pdfviewer.listener.OnPageChangeListener;
 import com.github.barteksc.pdfviewer.listener.OnPageErrorListener;
 import com.github.barteksc.pdfviewer.listener.OnPageScrollListener;
 import com.github.barteksc.pdfviewer.listener.OnRenderListener;
+import com.github.barteksc.pdfviewer.listener.OnRenderingMetricsListener;
 import com.github.barteksc.pdfviewer.listener.OnTapListener;
 import com.github.barteksc.pdfviewer.model.PagePart;
 import com.github.barteksc.pdfviewer.scroll.ScrollHandle;
+import com.github.barteksc.pdfviewer.scroll.ThumbSeekScrollHandle;
 import com.github.barteksc.pdfviewer.source.AssetSource;
 import com.github.barteksc.pdfviewer.source.ByteArraySource;
+import com.github.barteksc.pdfviewer.source.ByteBufferSource;
 import com.github.barteksc.pdfviewer.source.DocumentSource;
 import com.github.barteksc.pdfviewer.source.FileSource;
 import com.github.barteksc.pdfviewer.source.InputStreamSource;
@@ -64,7 +69,8 @@ import com.shockwave.pdfium.util.SizeF;
 
 import java.io.File;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -112,6 +118,9 @@ public class PDFView extends RelativeLayout {
     /** Rendered parts go to the cache manager */
     CacheManager cacheManager;
 
+    /** Bitmaps evicted from cache are kept here to be reused by rendering */
+    private BitmapPool bitmapPool;
+
     /** Animation manager manage all offset and zoom animation */
     private AnimationManager animationManager;
 
@@ -149,13 +158,56 @@ public class PDFView extends RelativeLayout {
     /** Async task used during the loading phase to decode a PDF document */
     private DecodingAsyncTask decodingAsyncTask;
 
-    /** The thread {@link #renderingHandler} will run on */
-    private final HandlerThread renderingHandlerThread;
-    /** Handler always waiting in the background and rendering tasks */
+    /** Async task loading real page sizes, when document was opened with estimated ones */
+    private PageSizesAsyncTask pageSizesAsyncTask;
+
+    /** True if document should be shown before sizes of all pages are known */
+    private boolean lazyPageSizes = false;
+
+    /** Persistent cache of page sizes, null if disabled */
+    private PageGeometryCache pageGeometryCache;
+
+    /** True if expensive parts should be rendered in lower resolution first */
+    private boolean progressiveRendering = false;
+
+    /** True if size of parts should be chosen for every page based on its rendering time */
+    private boolean adaptiveTiling = false;
+
+    /** Receives memory pressure notifications while view is attached, null before API 14 */
+    private ComponentCallbacks2 memoryCallbacks;
+
+    /** True if visible parts were released because of memory pressure and have to be loaded again */
+    private boolean memoryTrimmed = false;
+
+    /** True if parts should be rendered by process-wide {@link RenderingEngine} shared with other views */
+    private boolean sharedRendering = false;
+
+    /** Persistent cache of rendered parts, null if disabled */
+    private DiskTileCache diskTileCache;
+
+    /** Id of loaded document, used as a key of persistent caches */
+    private String documentId;
+
+    /** Rendering workers always waiting in the background and rendering tasks */
     RenderingHandler renderingHandler;
 
+    /** Number of rendering workers */
+    private int renderingThreads = Util.getDefaultRenderingThreads();
+
     private PagesLoader pagesLoader;
 
+    /** Screen sized bitmap of default page shown until visible parts are rendered, may be null */
+    private Bitmap firstPageBitmap;
+
+    /** Page of {@link #firstPageBitmap} */
+    private int firstPage;
+
+    /** True if default page should be rendered and shown before document layout is ready */
+    private boolean firstPagePreview = false;
+
+    /** Rendering statistics, see {@link #getRenderingMetrics()} */
+    final MetricsCollector metrics = new MetricsCollector();
+
     Callbacks callbacks = new Callbacks();
 
     /** Paint object for drawing */
@@ -187,6 +239,14 @@ public class PDFView extends RelativeLayout {
         return scrollHandle;
     }
 
+    ScrollDir getScrollDir() {
+        return scrollDir;
+    }
+
+    AnimationManager getAnimationManager() {
+        return animationManager;
+    }
+
     /**
      * True if bitmap should use ARGB_8888 format and take more memory
      * False if bitmap should be compressed by using RGB_565 format and take less memory
@@ -215,20 +275,28 @@ public class PDFView extends RelativeLayout {
     /** Spacing between pages, in px */
     private int spacingPx = 0;
 
-    /** pages numbers used when calling onDrawAllListener */
-    private List<Integer> onDrawPagesNums = new ArrayList<>(10);
+    /** pages numbers used when calling onDrawAllListener, reused between frames */
+    private int[] onDrawPagesNums = new int[10];
+
+    /** Number of valid entries in {@link #onDrawPagesNums} */
+    private int onDrawPagesCount = 0;
+
+    /** Source rect of drawn part, reused to avoid allocations in onDraw() */
+    private final Rect drawSrcRect = new Rect();
+
+    /** Destination rect of drawn part, reused to avoid allocations in onDraw() */
+    private final RectF drawDstRect = new RectF();
 
     /** Construct the initial view */
     public PDFView(Context context, AttributeSet set) {
         super(context, set);
 
-        renderingHandlerThread = new HandlerThread("PDF renderer");
-
         if (isInEditMode()) {
             return;
         }
 
-        cacheManager = new CacheManager();
+        bitmapPool = new BitmapPool(Constants.Cache.BITMAP_POOL_SIZE);
+        cacheManager = new CacheManager(bitmapPool, Util.getDefaultCacheSize(context));
         animationManager = new AnimationManager(this);
         dragPinchManager = new DragPinchManager(this, animationManager);
         pagesLoader = new PagesLoader(this);
@@ -252,6 +320,7 @@ public class PDFView extends RelativeLayout {
         }
 
         recycled = false;
+        metrics.onLoadStarted();
         // Start decoding document
         decodingAsyncTask = new DecodingAsyncTask(docSource, password, userPages, this, pdfiumCore);
         decodingAsyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
@@ -400,14 +469,18 @@ public class PDFView extends RelativeLayout {
         // Stop tasks
         if (renderingHandler != null) {
             renderingHandler.stop();
-            renderingHandler.removeMessages(RenderingHandler.MSG_RENDER_TASK);
         }
         if (decodingAsyncTask != null) {
             decodingAsyncTask.cancel(true);
         }
+        if (pageSizesAsyncTask != null) {
+            pageSizesAsyncTask.cancel(true);
+            pageSizesAsyncTask = null;
+        }
 
         // Clear caches
         cacheManager.recycle();
+        releaseFirstPage();
 
         if (scrollHandle != null && isScrollHandleInit) {
             scrollHandle.destroyLayout();
@@ -419,6 +492,7 @@ public class PDFView extends RelativeLayout {
         }
 
         renderingHandler = null;
+        documentId = null;
         scrollHandle = null;
         isScrollHandleInit = false;
         currentXOffset = currentYOffset = 0;
@@ -442,12 +516,87 @@ public class PDFView extends RelativeLayout {
         animationManager.computeFling();
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (memoryCallbacks == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            memoryCallbacks = new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    trimMemory(level);
+                }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                }
+
+                @Override
+                public void onLowMemory() {
+                    trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+                }
+            };
+            getContext().getApplicationContext().registerComponentCallbacks(memoryCallbacks);
+        }
+    }
+
     @Override
     protected void onDetachedFromWindow() {
+        if (memoryCallbacks != null) {
+            getContext().getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+            memoryCallbacks = null;
+        }
         recycle();
+        if (bitmapPool != null) {
+            bitmapPool.clear();
+        }
+        releaseDiskCache();
         super.onDetachedFromWindow();
     }
 
+    /**
+     * Release memory according to level reported by {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * When the app is running, only reusable bitmaps and unused parts are released. When its UI is hidden,
+     * idle Pdfium pages are closed too. In background all cached parts and thumbnails are released,
+     * they are loaded again when the view becomes visible.
+     */
+    void trimMemory(int level) {
+        BitmapPool pool = cacheManager.getBitmapPool();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            cacheManager.recycle();
+            releaseFirstPage();
+            if (scrollHandle instanceof ThumbSeekScrollHandle) {
+                ((ThumbSeekScrollHandle) scrollHandle).releaseThumbnails();
+            }
+            memoryTrimmed = state == State.SHOWN;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cacheManager.evictPassiveParts();
+        }
+        pool.clear();
+        if (bitmapPool != pool) {
+            bitmapPool.clear();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && pdfFile != null) {
+            pdfFile.closePages(0);
+        }
+        if (memoryTrimmed && getWindowVisibility() == VISIBLE) {
+            // still visible, load released parts right away
+            memoryTrimmed = false;
+            loadPages();
+        }
+        redraw();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (visibility == VISIBLE && memoryTrimmed) {
+            memoryTrimmed = false;
+            if (state == State.SHOWN) {
+                loadPages();
+            }
+        }
+    }
+
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         if (isInEditMode() || state != State.SHOWN) {
@@ -559,38 +708,72 @@ public class PDFView extends RelativeLayout {
         }
 
         if (state != State.SHOWN) {
+            if (firstPageBitmap != null) {
+                canvas.translate(currentXOffset, currentYOffset);
+                drawFirstPage(canvas);
+                canvas.translate(-currentXOffset, -currentYOffset);
+            }
             return;
         }
 
+        Util.beginSection("PDFView#drawParts");
+
         // Moves the canvas before drawing any element
         float currentXOffset = this.currentXOffset;
         float currentYOffset = this.currentYOffset;
         canvas.translate(currentXOffset, currentYOffset);
 
-        // Draws thumbnails
-        for (PagePart part : cacheManager.getThumbnails()) {
-            drawPart(canvas, part);
+        // Only parts of pages in the visible range are visited
+        float viewportOffset = swipeVertical ? -currentYOffset : -currentXOffset;
+        float viewportLength = swipeVertical ? getHeight() : getWidth();
+        int firstVisiblePage = pdfFile.getPageAtOffset(viewportOffset, zoom);
+        int lastVisiblePage = pdfFile.getPageAtOffset(viewportOffset + viewportLength, zoom);
+
+        // Draws thumbnails, indexed loops avoid allocating iterators
+        List<PagePart> thumbnails = cacheManager.getThumbnails();
+        for (int i = CacheManager.findFirstPartOfPage(thumbnails, firstVisiblePage);
+             i < thumbnails.size() && thumbnails.get(i).getPage() <= lastVisiblePage; i++) {
+            drawPart(canvas, thumbnails.get(i));
+        }
 
+        if (firstPageBitmap != null) {
+            drawFirstPage(canvas);
         }
 
         // Draws parts
-        for (PagePart part : cacheManager.getPageParts()) {
+        List<PagePart> parts = cacheManager.getPageParts();
+        for (int i = CacheManager.findFirstPartOfPage(parts, firstVisiblePage);
+             i < parts.size() && parts.get(i).getPage() <= lastVisiblePage; i++) {
+            PagePart part = parts.get(i);
             drawPart(canvas, part);
-            if (callbacks.getOnDrawAll() != null
-                    && !onDrawPagesNums.contains(part.getPage())) {
-                onDrawPagesNums.add(part.getPage());
+            if (callbacks.getOnDrawAll() != null) {
+                addOnDrawPage(part.getPage());
             }
         }
 
-        for (Integer page : onDrawPagesNums) {
-            drawWithListener(canvas, page, callbacks.getOnDrawAll());
+        for (int i = 0; i < onDrawPagesCount; i++) {
+            drawWithListener(canvas, onDrawPagesNums[i], callbacks.getOnDrawAll());
         }
-        onDrawPagesNums.clear();
+        onDrawPagesCount = 0;
 
         drawWithListener(canvas, currentPage, callbacks.getOnDraw());
 
         // Restores the canvas position
         canvas.translate(-currentXOffset, -currentYOffset);
+
+        Util.endSection();
+    }
+
+    private void addOnDrawPage(int page) {
+        for (int i = 0; i < onDrawPagesCount; i++) {
+            if (onDrawPagesNums[i] == page) {
+                return;
+            }
+        }
+        if (onDrawPagesCount == onDrawPagesNums.length) {
+            onDrawPagesNums = Arrays.copyOf(onDrawPagesNums, onDrawPagesNums.length * 2);
+        }
+        onDrawPagesNums[onDrawPagesCount++] = page;
     }
 
     private void drawWithListener(Canvas canvas, int page, OnDrawListener listener) {
@@ -615,6 +798,51 @@ public class PDFView extends RelativeLayout {
         }
     }
 
+    /**
+     * Draw first page preview, at position of the page if document layout is ready
+     * or at the beginning of the view otherwise
+     */
+    private void drawFirstPage(Canvas canvas) {
+        Bitmap bitmap = firstPageBitmap;
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        drawSrcRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        if (pdfFile == null) {
+            float left = swipeVertical ? (getWidth() - bitmap.getWidth()) / 2f : 0;
+            float top = swipeVertical ? 0 : (getHeight() - bitmap.getHeight()) / 2f;
+            drawDstRect.set(left, top, left + bitmap.getWidth(), top + bitmap.getHeight());
+        } else {
+            SizeF size = pdfFile.getPageSize(firstPage);
+            float pageOffset = pdfFile.getPageOffset(firstPage, zoom);
+            float secondaryOffset = pdfFile.getSecondaryPageOffset(firstPage, zoom);
+            float left = swipeVertical ? secondaryOffset : pageOffset;
+            float top = swipeVertical ? pageOffset : secondaryOffset;
+            drawDstRect.set(left, top, left + toCurrentScale(size.getWidth()), top + toCurrentScale(size.getHeight()));
+        }
+        canvas.drawBitmap(bitmap, drawSrcRect, drawDstRect, paint);
+    }
+
+    /** Called when first page preview is rendered, before document is loaded */
+    void onFirstPageRendered(Bitmap bitmap, int page) {
+        if (recycled) {
+            bitmap.recycle();
+            return;
+        }
+        releaseFirstPage();
+        firstPageBitmap = bitmap;
+        firstPage = page;
+        metrics.onFirstPixel();
+        redraw();
+    }
+
+    private void releaseFirstPage() {
+        if (firstPageBitmap != null) {
+            firstPageBitmap.recycle();
+            firstPageBitmap = null;
+        }
+    }
+
     /** Draw a given PagePart on the canvas */
     private void drawPart(Canvas canvas, PagePart part) {
         // Can seem strange, but avoid lot of calls
@@ -641,8 +869,8 @@ public class PDFView extends RelativeLayout {
         }
         canvas.translate(localTranslationX, localTranslationY);
 
-        Rect srcRect = new Rect(0, 0, renderedBitmap.getWidth(),
-                renderedBitmap.getHeight());
+        Rect srcRect = drawSrcRect;
+        srcRect.set(0, 0, renderedBitmap.getWidth(), renderedBitmap.getHeight());
 
         float offsetX = toCurrentScale(pageRelativeBounds.left * size.getWidth());
         float offsetY = toCurrentScale(pageRelativeBounds.top * size.getHeight());
@@ -652,7 +880,8 @@ public class PDFView extends RelativeLayout {
         // If we use float values for this rectangle, there will be
         // a possible gap between page parts, especially when
         // the zoom level is high.
-        RectF dstRect = new RectF((int) offsetX, (int) offsetY,
+        RectF dstRect = drawDstRect;
+        dstRect.set((int) offsetX, (int) offsetY,
                 (int) (offsetX + width),
                 (int) (offsetY + height));
 
@@ -687,24 +916,29 @@ public class PDFView extends RelativeLayout {
             return;
         }
 
-        // Cancel all current tasks
-        renderingHandler.removeMessages(RenderingHandler.MSG_RENDER_TASK);
+        Util.beginSection("PDFView#loadPages");
+        // Only queued tasks which are not requested again are cancelled
+        renderingHandler.beginPass();
+        cacheManager.setCurrentLevel(CacheManager.getZoomLevel(zoom));
         cacheManager.makeANewSet();
 
         pagesLoader.loadPages();
+        renderingHandler.endPass();
+        metrics.onPagesLoaded(renderingHandler.getQueuedTasksCount(), renderingHandler.hasVisibleTasks());
+        Util.endSection();
         redraw();
     }
 
     /** Called when the PDF is loaded */
-    void loadComplete(PdfFile pdfFile) {
+    void loadComplete(PdfFile pdfFile, String documentId) {
         state = State.LOADED;
 
         this.pdfFile = pdfFile;
+        this.documentId = documentId;
 
-        if (!renderingHandlerThread.isAlive()) {
-            renderingHandlerThread.start();
-        }
-        renderingHandler = new RenderingHandler(renderingHandlerThread.getLooper(), this);
+        RenderingEngine engine = sharedRendering ? RenderingEngine.getInstance(getContext()) : null;
+        cacheManager.setBitmapPool(engine != null ? engine.getBitmapPool() : bitmapPool);
+        renderingHandler = new RenderingHandler(this, pdfFile, renderingThreads, diskTileCache, documentId, engine);
         renderingHandler.start();
 
         if (scrollHandle != null) {
@@ -717,6 +951,54 @@ public class PDFView extends RelativeLayout {
         callbacks.callOnLoadComplete(pdfFile.getPagesCount());
 
         jumpTo(defaultPage, false);
+
+        if (!pdfFile.isPageSizesLoaded()) {
+            pageSizesAsyncTask = new PageSizesAsyncTask(this, pdfFile, pageGeometryCache, documentId);
+            pageSizesAsyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    /**
+     * Called when real sizes of next pages are loaded. Page at the top (or left) edge of the view
+     * is kept in place, together with relative position inside it, when page offsets change.
+     */
+    void onPageSizesLoaded(Size[] sizes, int from, int to) {
+        if (pdfFile == null || recycled) {
+            return;
+        }
+        float offset = swipeVertical ? currentYOffset : currentXOffset;
+        int anchorPage = pdfFile.getPageAtOffset(-offset, zoom);
+        SizeF anchorSize = pdfFile.getPageSize(anchorPage);
+        float anchorLength = toCurrentScale(swipeVertical ? anchorSize.getHeight() : anchorSize.getWidth());
+        float positionInPage = anchorLength > 0 ? (-offset - pdfFile.getPageOffset(anchorPage, zoom)) / anchorLength : 0;
+
+        boolean[] changedPages = pdfFile.setOriginalPageSizes(sizes, from, to);
+        if (changedPages != null) {
+            // parts rendered at estimated sizes may have the same keys as parts at real sizes, so they
+            // would never be rendered again
+            if (renderingHandler != null) {
+                renderingHandler.cancelPageTasks(changedPages);
+            }
+            cacheManager.evictPages(changedPages);
+        }
+
+        anchorSize = pdfFile.getPageSize(anchorPage);
+        anchorLength = toCurrentScale(swipeVertical ? anchorSize.getHeight() : anchorSize.getWidth());
+        float newOffset = -(pdfFile.getPageOffset(anchorPage, zoom) + positionInPage * anchorLength);
+        if (newOffset != offset) {
+            // fling would continue from position calculated with old offsets
+            animationManager.stopFling();
+        }
+        if (swipeVertical) {
+            moveTo(currentXOffset, newOffset);
+        } else {
+            moveTo(newOffset, currentYOffset);
+        }
+        loadPages();
+
+        if (pdfFile.isPageSizesLoaded()) {
+            pageSizesAsyncTask = null;
+        }
     }
 
     void loadError(Throwable t) {
@@ -749,14 +1031,58 @@ public class PDFView extends RelativeLayout {
             callbacks.callOnRender(pdfFile.getPagesCount());
         }
 
+        boolean cached;
         if (part.isThumbnail()) {
-            cacheManager.cacheThumbnail(part);
+            cached = cacheManager.cacheThumbnail(part);
         } else {
-            cacheManager.cachePart(part);
+            cached = cacheManager.cachePart(part);
+        }
+        if (renderingHandler != null) {
+            if (!cached) {
+                renderingHandler.onRenderWasted();
+            }
+            // part is in cache now, so its task can leave in-flight tasks
+            renderingHandler.onPartCached(part);
+        }
+        boolean visibleTasks = renderingHandler != null && renderingHandler.hasVisibleTasks();
+        if (!visibleTasks) {
+            // tiles cover the screen, first page preview is not needed anymore
+            releaseFirstPage();
+        }
+        if (renderingHandler != null && metrics.onPartRendered(visibleTasks)
+                && callbacks.getOnRenderingMetrics() != null) {
+            callbacks.getOnRenderingMetrics().onScreenSharp(getRenderingMetrics());
         }
         redraw();
     }
 
+    /** Get number of pages currently opened in Pdfium, see {@link Constants.Cache#MAX_OPENED_PAGES} */
+    public int getOpenedPagesCount() {
+        PdfFile file = pdfFile;
+        return file != null ? file.getOpenedPagesCount() : 0;
+    }
+
+    /**
+     * Get rough estimate of native memory used by pages opened in Pdfium, in bytes. It's taken from change
+     * of process-wide native heap size while a page is opened and first rendered, so allocations made
+     * by other threads at the same time are included. Use it to spot trends, not as exact accounting.
+     */
+    public long getOpenedPagesMemory() {
+        PdfFile file = pdfFile;
+        return file != null ? file.getOpenedPagesMemory() : 0;
+    }
+
+    /** Get rendering statistics collected since the document was loaded */
+    public RenderingMetrics getRenderingMetrics() {
+        RenderingHandler handler = renderingHandler;
+        return metrics.snapshot(handler != null ? handler.getQueuedTasksCount() : 0,
+                cacheManager.getHitCount(), cacheManager.getMissCount(), cacheManager.getEvictionCount(),
+                cacheManager.getCurrentBytes() + cacheManager.getThumbnailsBytes(),
+                cacheManager.getBitmapPool().getCurrentBytes(),
+                handler != null ? handler.getWastedRendersCount() : 0,
+                handler != null ? handler.getCancelledTasksCount() : 0);
+    }
+
     public void moveTo(float offsetX, float offsetY) {
         moveTo(offsetX, offsetY, true);
     }
@@ -1075,6 +1401,33 @@ public class PDFView extends RelativeLayout {
         this.spacingPx = Util.getDP(getContext(), spacing);
     }
 
+    /**
+     * Set number of threads rendering document parts
+     *
+     * @param renderingThreads number of threads, if not positive default number based on available processors is used
+     */
+    private void setRenderingThreads(int renderingThreads) {
+        this.renderingThreads = renderingThreads > 0 ? renderingThreads : Util.getDefaultRenderingThreads();
+    }
+
+    public int getRenderingThreads() {
+        return renderingThreads;
+    }
+
+    /**
+     * Set maximum size of rendered parts cache
+     *
+     * @param cacheSize size in bytes, if not positive default size based on device memory class is used
+     */
+    private void setCacheSize(long cacheSize) {
+        cacheManager.setMaxBytes(cacheSize > 0 ? cacheSize : Util.getDefaultCacheSize(getContext()));
+    }
+
+    /** Get maximum size of rendered parts cache, in bytes */
+    public long getCacheSize() {
+        return cacheManager.getMaxBytes();
+    }
+
     private void setPageFitPolicy(FitPolicy pageFitPolicy) {
         this.pageFitPolicy = pageFitPolicy;
     }
@@ -1083,10 +1436,126 @@ public class PDFView extends RelativeLayout {
         return pageFitPolicy;
     }
 
+    private void setLazyPageSizes(boolean lazyPageSizes) {
+        this.lazyPageSizes = lazyPageSizes;
+    }
+
+    public boolean isLazyPageSizes() {
+        return lazyPageSizes;
+    }
+
+    private void setPageGeometryCaching(boolean pageGeometryCaching) {
+        if (!pageGeometryCaching) {
+            pageGeometryCache = null;
+        } else if (pageGeometryCache == null) {
+            File directory = new File(getContext().getCacheDir(), Constants.Cache.GEOMETRY_CACHE_DIR);
+            pageGeometryCache = new PageGeometryCache(directory, Constants.Cache.GEOMETRY_CACHE_FILES);
+        }
+    }
+
+    public boolean isPageGeometryCaching() {
+        return pageGeometryCache != null;
+    }
+
+    PageGeometryCache getPageGeometryCache() {
+        return pageGeometryCache;
+    }
+
+    int getDefaultPage() {
+        return defaultPage;
+    }
+
+    private void setFirstPagePreview(boolean firstPagePreview) {
+        this.firstPagePreview = firstPagePreview;
+    }
+
+    public boolean isFirstPagePreview() {
+        return firstPagePreview;
+    }
+
+    private void setProgressiveRendering(boolean progressiveRendering) {
+        this.progressiveRendering = progressiveRendering;
+    }
+
+    public boolean isProgressiveRendering() {
+        return progressiveRendering;
+    }
+
+    private void setSharedRendering(boolean sharedRendering) {
+        this.sharedRendering = sharedRendering;
+    }
+
+    public boolean isSharedRendering() {
+        return sharedRendering;
+    }
+
+    /**
+     * Give this view priority in rendering and bigger part of memory for cached parts, when rendering is shared
+     * with other views. Called automatically when the view is touched.
+     */
+    public void requestRenderingFocus() {
+        if (sharedRendering && renderingHandler != null) {
+            RenderingEngine.getInstance(getContext()).setFocusedView(this);
+        }
+    }
+
+    private void setAdaptiveTiling(boolean adaptiveTiling) {
+        this.adaptiveTiling = adaptiveTiling;
+    }
+
+    public boolean isAdaptiveTiling() {
+        return adaptiveTiling;
+    }
+
+    private void setDiskCaching(boolean diskCaching) {
+        if (!diskCaching) {
+            releaseDiskCache();
+        } else if (diskTileCache == null) {
+            File directory = new File(getContext().getCacheDir(), Constants.Cache.DISK_CACHE_DIR);
+            diskTileCache = DiskTileCache.acquire(directory, Constants.Cache.DISK_CACHE_SIZE);
+        }
+    }
+
+    private void releaseDiskCache() {
+        if (diskTileCache != null) {
+            // workers may still finish a task, they must not write to released cache
+            if (renderingHandler != null) {
+                renderingHandler.detachDiskCache();
+            }
+            diskTileCache.release();
+            diskTileCache = null;
+        }
+    }
+
+    public boolean isDiskCaching() {
+        return diskTileCache != null;
+    }
+
     public boolean doRenderDuringScale() {
         return renderDuringScale;
     }
 
+    /**
+     * Render whole document page into a new bitmap, e.g. a thumbnail shown outside the view. Rendering is
+     * serialized with rendering of the view and the page is closed with other pages opened by the view.
+     * May be called from background thread.
+     *
+     * @param docPage page index in document, regardless of displayed pages
+     * @return rendered bitmap or null if document is not loaded or the page cannot be rendered
+     */
+    public Bitmap renderDocumentPage(int docPage, int width, int height) {
+        PdfFile file = pdfFile;
+        if (file == null || width <= 0 || height <= 0) {
+            return null;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        if (!file.renderDocumentPage(bitmap, docPage, new Rect(0, 0, width, height))) {
+            bitmap.recycle();
+            return null;
+        }
+        return bitmap;
+    }
+
     /** Returns null if document is not loaded */
     public PdfDocument.Meta getDocumentMeta() {
         if (pdfFile == null) {
@@ -1131,7 +1600,18 @@ public class PDFView extends RelativeLayout {
         return new Configurator(new ByteArraySource(bytes));
     }
 
-    /** Use stream as the pdf source. Stream will be written to bytearray, because native code does not support Java Streams */
+    /**
+     * Use buffer as the pdf source. Buffer content is read as a stream and written to temporary file
+     * in cache directory, like in {@link #fromStream(InputStream)}
+     */
+    public Configurator fromByteBuffer(ByteBuffer buffer) {
+        return new Configurator(new ByteBufferSource(buffer));
+    }
+
+    /**
+     * Use stream as the pdf source. Stream will be written to temporary file in cache directory,
+     * because native code does not support Java Streams
+     */
     public Configurator fromStream(InputStream stream) {
         return new Configurator(new InputStreamSource(stream));
     }
@@ -1167,6 +1647,8 @@ public class PDFView extends RelativeLayout {
 
         private OnRenderListener onRenderListener;
 
+        private OnRenderingMetricsListener onRenderingMetricsListener;
+
         private OnTapListener onTapListener;
 
         private OnPageErrorListener onPageErrorListener;
@@ -1191,6 +1673,24 @@ public class PDFView extends RelativeLayout {
 
         private FitPolicy pageFitPolicy = FitPolicy.WIDTH;
 
+        private long cacheSize = 0;
+
+        private int renderingThreads = 0;
+
+        private boolean lazyPageSizes = false;
+
+        private boolean pageGeometryCaching = false;
+
+        private boolean diskCaching = false;
+
+        private boolean progressiveRendering = false;
+
+        private boolean adaptiveTiling = false;
+
+        private boolean sharedRendering = false;
+
+        private boolean firstPagePreview = false;
+
         private Configurator(DocumentSource documentSource) {
             this.documentSource = documentSource;
         }
@@ -1260,6 +1760,12 @@ public class PDFView extends RelativeLayout {
             return this;
         }
 
+        /** Listener called with rendering statistics every time all visible parts are rendered */
+        public Configurator onRenderingMetrics(OnRenderingMetricsListener onRenderingMetricsListener) {
+            this.onRenderingMetricsListener = onRenderingMetricsListener;
+            return this;
+        }
+
         public Configurator onTap(OnTapListener onTapListener) {
             this.onTapListener = onTapListener;
             return this;
@@ -1305,6 +1811,90 @@ public class PDFView extends RelativeLayout {
             return this;
         }
 
+        /**
+         * Set maximum size of rendered parts cache in bytes. Cached thumbnails may use additional
+         * {@link Constants.Cache#THUMBNAILS_MEMORY_RATIO} of it.
+         * By default it's calculated from device memory class, see {@link Constants.Cache#CACHE_MEMORY_RATIO}
+         */
+        public Configurator cacheSize(long cacheSize) {
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * Set number of threads rendering document parts.
+         * By default it's based on available processors, see {@link Constants#MAX_RENDERING_THREADS}
+         */
+        public Configurator renderingThreads(int renderingThreads) {
+            this.renderingThreads = renderingThreads;
+            return this;
+        }
+
+        /**
+         * Show document before sizes of all pages are read. Size of the first page is used as an estimate
+         * and real sizes are loaded in background, which speeds up opening of documents with thousands of pages.
+         */
+        public Configurator lazyPageSizes(boolean lazyPageSizes) {
+            this.lazyPageSizes = lazyPageSizes;
+            return this;
+        }
+
+        /**
+         * Store page sizes of opened documents in application cache directory, so they don't have to be read
+         * from every page next time the same document is opened. Works for documents from files and assets.
+         */
+        public Configurator pageGeometryCaching(boolean pageGeometryCaching) {
+            this.pageGeometryCaching = pageGeometryCaching;
+            return this;
+        }
+
+        /**
+         * Store rendered parts of files and assets in application cache directory, so they don't have to be
+         * rendered again when document is reopened. Size of the cache is {@link Constants.Cache#DISK_CACHE_SIZE}.
+         */
+        public Configurator diskCaching(boolean diskCaching) {
+            this.diskCaching = diskCaching;
+            return this;
+        }
+
+        /**
+         * Render parts of pages, which are expensive to render, in lower resolution first and refine them later.
+         * See {@link Constants#PROGRESSIVE_RENDERING_TIME} and {@link Constants#PROGRESSIVE_PREVIEW_RATIO}.
+         */
+        public Configurator progressiveRendering(boolean progressiveRendering) {
+            this.progressiveRendering = progressiveRendering;
+            return this;
+        }
+
+        /**
+         * Choose size of parts for every page based on its rendering time, instead of {@link Constants#PART_SIZE}.
+         * Cheap pages are split to bigger parts and expensive ones to smaller parts, see {@link Constants#ADAPTIVE_PART_TIME}.
+         */
+        public Configurator adaptiveTiling(boolean adaptiveTiling) {
+            this.adaptiveTiling = adaptiveTiling;
+            return this;
+        }
+
+        /**
+         * Render parts with process-wide workers shared by all views with this option, instead of own threads.
+         * Shared views also share bitmap pool and memory budget, which is divided among them, so
+         * {@link #renderingThreads(int)} and {@link #cacheSize(long)} are ignored.
+         * The view touched last is rendered first and gets bigger part of memory.
+         */
+        public Configurator sharedRendering(boolean sharedRendering) {
+            this.sharedRendering = sharedRendering;
+            return this;
+        }
+
+        /**
+         * Render default page to a screen sized bitmap right after document is opened and show it
+         * until its parts are rendered, so something is displayed before sizes of all pages are read
+         */
+        public Configurator firstPagePreview(boolean firstPagePreview) {
+            this.firstPagePreview = firstPagePreview;
+            return this;
+        }
+
         public void load() {
             PDFView.this.recycle();
             PDFView.this.callbacks.setOnLoadComplete(onLoadCompleteListener);
@@ -1314,6 +1904,7 @@ public class PDFView extends RelativeLayout {
             PDFView.this.callbacks.setOnPageChange(onPageChangeListener);
             PDFView.this.callbacks.setOnPageScroll(onPageScrollListener);
             PDFView.this.callbacks.setOnRender(onRenderListener);
+            PDFView.this.callbacks.setOnRenderingMetrics(onRenderingMetricsListener);
             PDFView.this.callbacks.setOnTap(onTapListener);
             PDFView.this.callbacks.setOnPageError(onPageErrorListener);
             PDFView.this.callbacks.setLinkHandler(linkHandler);
@@ -1327,6 +1918,15 @@ public class PDFView extends RelativeLayout {
             PDFView.this.enableAntialiasing(antialiasing);
             PDFView.this.setSpacing(spacing);
             PDFView.this.setPageFitPolicy(pageFitPolicy);
+            PDFView.this.setCacheSize(cacheSize);
+            PDFView.this.setRenderingThreads(renderingThreads);
+            PDFView.this.setLazyPageSizes(lazyPageSizes);
+            PDFView.this.setPageGeometryCaching(pageGeometryCaching);
+            PDFView.this.setDiskCaching(diskCaching);
+            PDFView.this.setProgressiveRendering(progressiveRendering);
+            PDFView.this.setAdaptiveTiling(adaptiveTiling);
+            PDFView.this.setSharedRendering(sharedRendering);
+            PDFView.this.setFirstPagePreview(firstPagePreview);
 
             PDFView.this.post(new Runnable() {
                 @Override
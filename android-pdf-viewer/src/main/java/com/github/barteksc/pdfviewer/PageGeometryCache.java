@@ -0,0 +1,187 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.util.Log;
+
+import com.github.barteksc.pdfviewer.util.Util;
+import com.shockwave.pdfium.util.Size;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of original page sizes, so layout of previously opened document can be built
+ * without querying Pdfium for every page. Every document has its own binary file named after hash of document id:
+ * <pre>
+ * int magic, int version, UTF document id, int page count, page count * (int width, int height), long CRC32
+ * </pre>
+ * Files with unknown version, other document id or wrong checksum are deleted and ignored.
+ */
+class PageGeometryCache {
+
+    private static final String TAG = PageGeometryCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x50444647;
+
+    private static final int VERSION = 1;
+
+    private static final String FILE_SUFFIX = ".geometry";
+
+    private final File directory;
+
+    private final int maxFiles;
+
+    PageGeometryCache(File directory, int maxFiles) {
+        this.directory = directory;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Read page sizes of given document. May be called from background thread only.
+     *
+     * @return sizes of all document pages or null if they are not cached
+     */
+    synchronized Size[] load(String documentId) {
+        File file = getFile(documentId);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] data = readFully(file);
+            if (data.length < 8) {
+                throw new IOException("File too short");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !documentId.equals(in.readUTF())) {
+                throw new IOException("Unknown file format or document");
+            }
+            int count = in.readInt();
+            if (count < 0 || count * 8L != in.available() - 8) {
+                throw new IOException("Wrong page count");
+            }
+            Size[] sizes = new Size[count];
+            for (int i = 0; i < count; i++) {
+                sizes[i] = new Size(in.readInt(), in.readInt());
+            }
+            if (in.readLong() != crc.getValue()) {
+                throw new IOException("Wrong checksum");
+            }
+            // mark file as recently used
+            file.setLastModified(System.currentTimeMillis());
+            return sizes;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read page geometry, file is deleted", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Store page sizes of given document, replacing previous file atomically. May be called from background thread only.
+     *
+     * @param sizes sizes of all document pages, indexed by document page
+     */
+    synchronized void save(String documentId, Size[] sizes) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File file = getFile(documentId);
+        File tmpFile = new File(directory, file.getName() + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + sizes.length * 8);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(documentId);
+            out.writeInt(sizes.length);
+            for (Size size : sizes) {
+                out.writeInt(size.getWidth());
+                out.writeInt(size.getHeight());
+            }
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+
+            OutputStream fileOut = new FileOutputStream(tmpFile);
+            try {
+                bytes.writeTo(fileOut);
+            } finally {
+                fileOut.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write page geometry", e);
+            tmpFile.delete();
+            return;
+        }
+        trim();
+    }
+
+    /** Delete least recently used files above limit */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= maxFiles) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified(), m2 = f2.lastModified();
+                return m1 < m2 ? 1 : (m1 == m2 ? 0 : -1);
+            }
+        });
+        for (int i = maxFiles; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    private File getFile(String documentId) {
+        return new File(directory, Util.hash(documentId) + FILE_SUFFIX);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
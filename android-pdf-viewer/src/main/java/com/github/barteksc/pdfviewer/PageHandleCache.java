@@ -0,0 +1,228 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.os.Debug;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used set of Pdfium pages opened in one document. When there are more opened pages
+ * than the limit, least recently used pages which are not pinned are closed. Pinned pages are used
+ * by rendering tasks in progress.
+ * <p>
+ * PdfiumCore closes pages only with the document, so a page is closed through its private native method.
+ * Only pages opened by {@link PdfFile} are added and closed, pages opened in the document by other code are
+ * never closed. Members used by reflection are kept by consumer ProGuard rules of the library. If any of them
+ * is not available or has unexpected type, an error is logged and pages are kept opened until the document
+ * is closed.
+ * <p>
+ * Native memory of every page is a rough estimate, taken from change of native heap size while the page
+ * is opened and first rendered. Native heap is shared by the whole process, so allocations of other threads
+ * made at the same time are counted too. All calls must be synchronized by the caller.
+ */
+class PageHandleCache {
+
+    private static final String TAG = PageHandleCache.class.getSimpleName();
+
+    private static volatile Method nativeClosePage;
+
+    private static Field nativePagesPtr;
+
+    private static Object pdfiumLock;
+
+    static {
+        // members are published only if all of them are found, so pages are never closed half way
+        try {
+            Method closePage = PdfiumCore.class.getDeclaredMethod("nativeClosePage", long.class);
+            closePage.setAccessible(true);
+            Field pagesPtr = PdfDocument.class.getDeclaredField("mNativePagesPtr");
+            pagesPtr.setAccessible(true);
+            Field lockField = PdfiumCore.class.getDeclaredField("lock");
+            lockField.setAccessible(true);
+            Object lock = lockField.get(null);
+            if (lock == null || !Map.class.isAssignableFrom(pagesPtr.getType())) {
+                throw new IllegalStateException("Unexpected members of PdfiumCore");
+            }
+            nativePagesPtr = pagesPtr;
+            pdfiumLock = lock;
+            nativeClosePage = closePage;
+        } catch (Exception e) {
+            Log.e(TAG, "Closing of Pdfium pages is not available, pages stay opened until document is closed "
+                    + "and may exhaust native memory. If the app is minified, check that consumer ProGuard rules "
+                    + "of the library are applied.", e);
+        }
+    }
+
+    private final PdfiumCore pdfiumCore;
+
+    private final PdfDocument pdfDocument;
+
+    private final int maxPages;
+
+    /** Opened document pages with estimated native memory, in access order */
+    private final LinkedHashMap<Integer, Long> pages = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Opened pages, whose memory allocated by rendering was already estimated */
+    private final SparseBooleanArray renderMeasured = new SparseBooleanArray();
+
+    /** Pin count of document pages */
+    private final SparseIntArray pins = new SparseIntArray();
+
+    private long nativeBytes = 0;
+
+    PageHandleCache(PdfiumCore pdfiumCore, PdfDocument pdfDocument, int maxPages) {
+        this.pdfiumCore = pdfiumCore;
+        this.pdfDocument = pdfDocument;
+        this.maxPages = maxPages;
+    }
+
+    /** Get process-wide lock of PdfiumCore, null if it's not available */
+    static Object getPdfiumLock() {
+        return nativeClosePage != null ? pdfiumLock : null;
+    }
+
+    /** Current size of native heap, used to estimate memory of pages */
+    static long nativeHeapSize() {
+        return Debug.getNativeHeapAllocatedSize();
+    }
+
+    /** Record page opened by {@link PdfFile} with native memory allocated while opening it */
+    void add(int docPage, long bytes) {
+        bytes = Math.max(0, bytes);
+        Long old = pages.put(docPage, bytes);
+        nativeBytes += bytes - (old != null ? old : 0);
+    }
+
+    /** Mark page as most recently used */
+    void touch(int docPage) {
+        pages.get(docPage);
+    }
+
+    /** @return true if memory allocated by the first rendering of opened page should be estimated */
+    boolean shouldMeasureRender(int docPage) {
+        return pages.containsKey(docPage) && !renderMeasured.get(docPage);
+    }
+
+    /** Mark page as used and add native memory allocated by its first rendering */
+    void addRenderMemory(int docPage, long bytes) {
+        Long old = pages.get(docPage);
+        if (old == null) {
+            return;
+        }
+        renderMeasured.put(docPage, true);
+        if (bytes > 0) {
+            pages.put(docPage, old + bytes);
+            nativeBytes += bytes;
+        }
+    }
+
+    void pin(int docPage) {
+        pins.put(docPage, pins.get(docPage) + 1);
+    }
+
+    void unpin(int docPage) {
+        int count = pins.get(docPage) - 1;
+        if (count > 0) {
+            pins.put(docPage, count);
+        } else {
+            pins.delete(docPage);
+        }
+    }
+
+    /**
+     * Close least recently used pages which are not pinned, until number of opened pages fits the limit
+     *
+     * @param openedPages closed pages are removed from it
+     */
+    void trim(SparseBooleanArray openedPages) {
+        trim(openedPages, maxPages);
+    }
+
+    /**
+     * Close least recently used pages which are not pinned, until number of opened pages fits given limit
+     *
+     * @param openedPages closed pages are removed from it
+     */
+    void trim(SparseBooleanArray openedPages, int limit) {
+        if (nativeClosePage == null || pages.size() <= limit) {
+            return;
+        }
+        Iterator<Map.Entry<Integer, Long>> iterator = pages.entrySet().iterator();
+        while (pages.size() > limit && iterator.hasNext()) {
+            Map.Entry<Integer, Long> entry = iterator.next();
+            int docPage = entry.getKey();
+            if (pins.get(docPage) > 0) {
+                continue;
+            }
+            if (!close(docPage)) {
+                return;
+            }
+            iterator.remove();
+            nativeBytes -= entry.getValue();
+            openedPages.delete(docPage);
+            renderMeasured.delete(docPage);
+        }
+    }
+
+    /** Forget all pages, they are closed natively with the document */
+    void clear() {
+        pages.clear();
+        renderMeasured.clear();
+        pins.clear();
+        nativeBytes = 0;
+    }
+
+    int getOpenedCount() {
+        return pages.size();
+    }
+
+    long getNativeBytes() {
+        return nativeBytes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean close(int docPage) {
+        try {
+            synchronized (pdfiumLock) {
+                Object pagePtrs = nativePagesPtr.get(pdfDocument);
+                if (!(pagePtrs instanceof Map)) {
+                    throw new IllegalStateException("Unexpected pages of PdfDocument: " + pagePtrs);
+                }
+                Long pagePtr = ((Map<Integer, Long>) pagePtrs).remove(docPage);
+                if (pagePtr != null) {
+                    nativeClosePage.invoke(pdfiumCore, pagePtr);
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot close Pdfium page " + docPage + ", closing of pages is disabled and pages stay opened "
+                    + "until document is closed", e);
+            nativeClosePage = null;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.os.AsyncTask;
+
+import com.shockwave.pdfium.util.Size;
+
+/**
+ * Loads real page sizes in background, when document was opened with estimated page sizes.
+ * Sizes are published to {@link PDFView} in batches, so layout is not recalculated for every page.
+ */
+class PageSizesAsyncTask extends AsyncTask<Void, Integer, Void> {
+
+    /** Number of pages loaded before layout is updated */
+    private static final int BATCH_SIZE = 256;
+
+    private PDFView pdfView;
+
+    private PdfFile pdfFile;
+
+    /** Cache where loaded sizes are stored, null if they should not be stored */
+    private PageGeometryCache geometryCache;
+
+    private String documentId;
+
+    private final Size[] sizes;
+
+    private int publishedCount;
+
+    PageSizesAsyncTask(PDFView pdfView, PdfFile pdfFile, PageGeometryCache geometryCache, String documentId) {
+        this.pdfView = pdfView;
+        this.pdfFile = pdfFile;
+        if (geometryCache != null && documentId != null && pdfFile.isShowingAllDocumentPages()) {
+            this.geometryCache = geometryCache;
+            this.documentId = documentId;
+        }
+        this.sizes = new Size[pdfFile.getPagesCount()];
+        this.publishedCount = pdfFile.getLoadedPageSizesCount();
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        int from = publishedCount;
+        if (geometryCache != null) {
+            // cache needs sizes of all pages, including already known ones
+            for (int i = 0; i < from; i++) {
+                sizes[i] = pdfFile.loadOriginalPageSize(i);
+                if (sizes[i] == null) {
+                    return null;
+                }
+            }
+        }
+        for (int i = from; i < sizes.length; i++) {
+            if (isCancelled()) {
+                return null;
+            }
+            Size size = pdfFile.loadOriginalPageSize(i);
+            if (size == null) {
+                // document disposed
+                return null;
+            }
+            sizes[i] = size;
+            if (i + 1 - from >= BATCH_SIZE || i == sizes.length - 1) {
+                publishProgress(i + 1);
+                from = i + 1;
+            }
+        }
+        if (geometryCache != null && !isCancelled()) {
+            geometryCache.save(documentId, sizes);
+        }
+        return null;
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (isCancelled()) {
+            return;
+        }
+        int to = values[values.length - 1];
+        pdfView.onPageSizesLoaded(sizes, publishedCount, to);
+        publishedCount = to;
+    }
+}
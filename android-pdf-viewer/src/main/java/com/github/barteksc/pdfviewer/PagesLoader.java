@@ -22,7 +22,8 @@ import com.github.barteksc.pdfviewer.util.MathUtils;
 import com.github.barteksc.pdfviewer.util.Util;
 import com.shockwave.pdfium.util.SizeF;
 
-import static com.github.barteksc.pdfviewer.util.Constants.Cache.CACHE_SIZE;
+import static com.github.barteksc.pdfviewer.util.Constants.FAST_FLING_VELOCITY;
+import static com.github.barteksc.pdfviewer.util.Constants.PRELOAD_DIRECTION_MULTIPLIER;
 import static com.github.barteksc.pdfviewer.util.Constants.PRELOAD_OFFSET;
 
 class PagesLoader {
@@ -35,13 +36,26 @@ class PagesLoader {
     private float pageRelativePartHeight;
     private float partRenderWidth;
     private float partRenderHeight;
+    /** Number of default size parts, which current part size is worth in parts limit */
+    private int partWeight = 1;
+    /** Zoom level of loaded parts, see {@link CacheManager#getZoomLevel(float)} */
+    private int level;
+    /** Zoom at which parts of current level are rendered */
+    private float levelZoom;
     private final RectF thumbnailRect = new RectF(0, 0, 1, 1);
     private final int preloadOffset;
+    private final int fastFlingVelocity;
     private final Holder firstHolder = new Holder();
     private final Holder lastHolder = new Holder();
     private final GridSize firstGrid = new GridSize();
     private final GridSize lastGrid = new GridSize();
     private final GridSize middleGrid = new GridSize();
+    /** Visible part of document, in document coordinates at current zoom */
+    private final RectF viewport = new RectF();
+    /** Number of thumbnails requested in current pass, used as capacity of thumbnails cache */
+    private int thumbnailsCount;
+    /** Distance from viewport center, calculated by {@link #calculatePriority(int, RectF, boolean)} */
+    private float priorityDistance;
 
     private class Holder {
         int page;
@@ -52,19 +66,23 @@ class PagesLoader {
     private class GridSize {
         int rows;
         int cols;
+        float partSize;
     }
 
     PagesLoader(PDFView pdfView) {
         this.pdfView = pdfView;
         this.preloadOffset = Util.getDP(pdfView.getContext(), PRELOAD_OFFSET);
+        this.fastFlingVelocity = Util.getDP(pdfView.getContext(), FAST_FLING_VELOCITY);
     }
 
     private void getPageColsRows(GridSize grid, int pageIndex) {
         SizeF size = pdfView.pdfFile.getPageSize(pageIndex);
         float ratioX = 1f / size.getWidth();
         float ratioY = 1f / size.getHeight();
-        final float partHeight = (Constants.PART_SIZE * ratioY) / pdfView.getZoom();
-        final float partWidth = (Constants.PART_SIZE * ratioX) / pdfView.getZoom();
+        grid.partSize = pdfView.isAdaptiveTiling()
+                ? pdfView.renderingHandler.getCostModel().getPartSize(pageIndex) : Constants.PART_SIZE;
+        final float partHeight = (grid.partSize * ratioY) / levelZoom;
+        final float partWidth = (grid.partSize * ratioX) / levelZoom;
         grid.rows = MathUtils.ceil(1f / partHeight);
         grid.cols = MathUtils.ceil(1f / partWidth);
     }
@@ -102,17 +120,37 @@ class PagesLoader {
     private void calculatePartSize(GridSize grid) {
         pageRelativePartWidth = 1f / (float) grid.cols;
         pageRelativePartHeight = 1f / (float) grid.rows;
-        partRenderWidth = Constants.PART_SIZE / pageRelativePartWidth;
-        partRenderHeight = Constants.PART_SIZE / pageRelativePartHeight;
+        partRenderWidth = grid.partSize / pageRelativePartWidth;
+        partRenderHeight = grid.partSize / pageRelativePartHeight;
+        // parts limit is expressed in parts of default size
+        partWeight = Math.max(1, Math.round(grid.partSize * grid.partSize / (Constants.PART_SIZE * Constants.PART_SIZE)));
     }
 
-    private void loadVisible() {
+    private void loadVisible(boolean fastFling) {
         int parts = 0;
         float scaledPreloadOffset = preloadOffset * pdfView.getZoom();
-        float firstXOffset = -xOffset + scaledPreloadOffset;
-        float lastXOffset = -xOffset - pdfView.getWidth() - scaledPreloadOffset;
-        float firstYOffset = -yOffset + scaledPreloadOffset;
-        float lastYOffset = -yOffset - pdfView.getHeight() - scaledPreloadOffset;
+
+        // preload more in the direction of scrolling
+        float startPreloadOffset = scaledPreloadOffset;
+        float endPreloadOffset = scaledPreloadOffset;
+        if (pdfView.getScrollDir() == PDFView.ScrollDir.START) {
+            startPreloadOffset *= PRELOAD_DIRECTION_MULTIPLIER;
+        } else if (pdfView.getScrollDir() == PDFView.ScrollDir.END) {
+            endPreloadOffset *= PRELOAD_DIRECTION_MULTIPLIER;
+        }
+
+        float firstXOffset, lastXOffset, firstYOffset, lastYOffset;
+        if (pdfView.isSwipeVertical()) {
+            firstXOffset = -xOffset + scaledPreloadOffset;
+            lastXOffset = -xOffset - pdfView.getWidth() - scaledPreloadOffset;
+            firstYOffset = -yOffset + startPreloadOffset;
+            lastYOffset = -yOffset - pdfView.getHeight() - endPreloadOffset;
+        } else {
+            firstXOffset = -xOffset + startPreloadOffset;
+            lastXOffset = -xOffset - pdfView.getWidth() - endPreloadOffset;
+            firstYOffset = -yOffset + scaledPreloadOffset;
+            lastYOffset = -yOffset - pdfView.getHeight() - scaledPreloadOffset;
+        }
 
         getPageAndCoordsByOffset(firstHolder, firstGrid, firstXOffset, firstYOffset, false);
         getPageAndCoordsByOffset(lastHolder, lastGrid, lastXOffset, lastYOffset, true);
@@ -121,18 +159,24 @@ class PagesLoader {
             loadThumbnail(i);
         }
 
+        // pages only flashing past during fast fling don't need full resolution parts
+        if (fastFling) {
+            return;
+        }
+
+        int partsLimit = pdfView.cacheManager.getPartsLimit(pdfView.isBestQuality());
         int pagesCount = lastHolder.page - firstHolder.page + 1;
-        for (int page = firstHolder.page; page <= lastHolder.page && parts < CACHE_SIZE; page++) {
+        for (int page = firstHolder.page; page <= lastHolder.page && parts < partsLimit; page++) {
 
             if (page == firstHolder.page && pagesCount > 1) {
-                parts += loadPageEnd(firstHolder, firstGrid, CACHE_SIZE - parts);
+                parts += loadPageEnd(firstHolder, firstGrid, partsLimit - parts);
             } else if (page == lastHolder.page && pagesCount > 1) {
-                parts += loadPageStart(lastHolder, lastGrid, CACHE_SIZE - parts);
+                parts += loadPageStart(lastHolder, lastGrid, partsLimit - parts);
             } else if(pagesCount == 1) {
-                parts += loadPageCenter(firstHolder, lastHolder, firstGrid, CACHE_SIZE - parts);
+                parts += loadPageCenter(firstHolder, lastHolder, firstGrid, partsLimit - parts);
             } else {
                 getPageColsRows(middleGrid, page);
-                parts += loadWholePage(page, middleGrid, CACHE_SIZE - parts);
+                parts += loadWholePage(page, middleGrid, partsLimit - parts);
             }
         }
 
@@ -197,7 +241,7 @@ class PagesLoader {
         for (int row = firstRow; row <= lastRow; row++) {
             for (int col = firstCol; col <= lastCol; col++) {
                 if (loadCell(page, row, col, pageRelativePartWidth, pageRelativePartHeight)) {
-                    loaded++;
+                    loaded += partWeight;
                 }
                 if (loaded >= nbOfPartsLoadable) {
                     return loaded;
@@ -227,10 +271,11 @@ class PagesLoader {
         RectF pageRelativeBounds = new RectF(relX, relY, relX + relWidth, relY + relHeight);
 
         if (renderWidth > 0 && renderHeight > 0) {
-            if (!pdfView.cacheManager.upPartIfContained(page, pageRelativeBounds, cacheOrder)) {
+            if (!pdfView.cacheManager.upPartIfContained(page, pageRelativeBounds, level, cacheOrder)) {
+                int priority = calculatePriority(page, pageRelativeBounds, false);
                 pdfView.renderingHandler.addRenderingTask(page, renderWidth, renderHeight,
-                        pageRelativeBounds, false, cacheOrder, pdfView.isBestQuality(),
-                        pdfView.isAnnotationRendering());
+                        pageRelativeBounds, false, level, cacheOrder, pdfView.isBestQuality(),
+                        pdfView.isAnnotationRendering(), priority, priorityDistance);
             }
 
             cacheOrder++;
@@ -243,18 +288,93 @@ class PagesLoader {
         SizeF pageSize = pdfView.pdfFile.getPageSize(page);
         float thumbnailWidth = pageSize.getWidth() * Constants.THUMBNAIL_RATIO;
         float thumbnailHeight = pageSize.getHeight() * Constants.THUMBNAIL_RATIO;
+        thumbnailsCount++;
         if (!pdfView.cacheManager.containsThumbnail(page, thumbnailRect)) {
+            int priority = calculatePriority(page, thumbnailRect, true);
             pdfView.renderingHandler.addRenderingTask(page,
                     thumbnailWidth, thumbnailHeight, thumbnailRect,
-                    true, 0, pdfView.isBestQuality(), pdfView.isAnnotationRendering());
+                    true, 0, 0, pdfView.isBestQuality(), pdfView.isAnnotationRendering(),
+                    priority, priorityDistance);
+        }
+    }
+
+    /**
+     * Calculate rendering priority of a part or thumbnail, based on its visibility.
+     * Distance of the part from viewport center is stored in {@link #priorityDistance}.
+     *
+     * @return one of RenderingHandler.PRIORITY_* constants
+     */
+    private int calculatePriority(int page, RectF pageRelativeBounds, boolean thumbnail) {
+        float zoom = pdfView.getZoom();
+        SizeF size = pdfView.pdfFile.getPageSize(page);
+        float pageWidth = size.getWidth() * zoom;
+        float pageHeight = size.getHeight() * zoom;
+        float pageX, pageY;
+        if (pdfView.isSwipeVertical()) {
+            pageX = pdfView.pdfFile.getSecondaryPageOffset(page, zoom);
+            pageY = pdfView.pdfFile.getPageOffset(page, zoom);
+        } else {
+            pageX = pdfView.pdfFile.getPageOffset(page, zoom);
+            pageY = pdfView.pdfFile.getSecondaryPageOffset(page, zoom);
+        }
+
+        float left = pageX + pageRelativeBounds.left * pageWidth;
+        float top = pageY + pageRelativeBounds.top * pageHeight;
+        float right = pageX + pageRelativeBounds.right * pageWidth;
+        float bottom = pageY + pageRelativeBounds.bottom * pageHeight;
+
+        float dx = (left + right) / 2 - viewport.centerX();
+        float dy = (top + bottom) / 2 - viewport.centerY();
+        priorityDistance = (float) Math.sqrt(dx * dx + dy * dy);
+
+        if (!viewport.intersects(left, top, right, bottom)) {
+            return RenderingHandler.PRIORITY_PRELOAD;
+        }
+        return thumbnail ? RenderingHandler.PRIORITY_VISIBLE_THUMBNAIL : RenderingHandler.PRIORITY_VISIBLE;
+    }
+
+    /** True if document is flinging so fast, that rendered parts wouldn't be seen */
+    private boolean isFastFling() {
+        AnimationManager animationManager = pdfView.getAnimationManager();
+        return animationManager.isFlinging() && animationManager.getFlingVelocity() > fastFlingVelocity;
+    }
+
+    /** Prefetch thumbnails of pages which will be visible when current fling ends */
+    private void loadFlingEndThumbnails() {
+        AnimationManager animationManager = pdfView.getAnimationManager();
+        float finalOffset, length;
+        if (pdfView.isSwipeVertical()) {
+            finalOffset = -animationManager.getFlingFinalY();
+            length = pdfView.getHeight();
+        } else {
+            finalOffset = -animationManager.getFlingFinalX();
+            length = pdfView.getWidth();
+        }
+        int firstPage = pdfView.pdfFile.getPageAtOffset(finalOffset, pdfView.getZoom());
+        int lastPage = pdfView.pdfFile.getPageAtOffset(finalOffset + length, pdfView.getZoom());
+        for (int page = firstPage; page <= lastPage; page++) {
+            loadThumbnail(page);
         }
     }
 
     void loadPages() {
         cacheOrder = 1;
+        level = CacheManager.getZoomLevel(pdfView.getZoom());
+        levelZoom = CacheManager.getLevelZoom(level);
         xOffset = -MathUtils.max(pdfView.getCurrentXOffset(), 0);
         yOffset = -MathUtils.max(pdfView.getCurrentYOffset(), 0);
+        viewport.set(-pdfView.getCurrentXOffset(), -pdfView.getCurrentYOffset(),
+                -pdfView.getCurrentXOffset() + pdfView.getWidth(),
+                -pdfView.getCurrentYOffset() + pdfView.getHeight());
+
+        thumbnailsCount = 0;
 
-        loadVisible();
+        boolean fastFling = isFastFling();
+        loadVisible(fastFling);
+        if (fastFling) {
+            loadFlingEndThumbnails();
+        }
+        // requested thumbnails are most recently used, so only thumbnails of other pages are evicted
+        pdfView.cacheManager.setThumbnailsCapacity(thumbnailsCount);
     }
 }
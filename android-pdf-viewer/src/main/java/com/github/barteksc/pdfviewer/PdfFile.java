@@ -21,6 +21,7 @@ import android.graphics.RectF;
 import android.util.SparseBooleanArray;
 
 import com.github.barteksc.pdfviewer.exception.PageRenderingException;
+import com.github.barteksc.pdfviewer.util.Constants;
 import com.github.barteksc.pdfviewer.util.FitPolicy;
 import com.github.barteksc.pdfviewer.util.PageSizeCalculator;
 import com.shockwave.pdfium.PdfDocument;
@@ -33,7 +34,13 @@ import java.util.List;
 
 class PdfFile {
 
-    private static final Object lock = new Object();
+    /**
+     * Guards document and opened pages, as Pdfium does not support concurrent access to one document.
+     * The lock belongs to the document only because that's the state it guards. It doesn't make views
+     * showing different documents render faster, PdfiumCore serializes all native calls on its own
+     * process-wide lock anyway.
+     */
+    private final Object lock = new Object();
     private PdfDocument pdfDocument;
     private PdfiumCore pdfiumCore;
     private int pagesCount = 0;
@@ -43,6 +50,8 @@ class PdfFile {
     private List<SizeF> pageSizes = new ArrayList<>();
     /** Opened pages with indicator whether opening was successful */
     private SparseBooleanArray openedPages = new SparseBooleanArray();
+    /** Successfully opened pages, least recently used are closed */
+    private final PageHandleCache pageHandles;
     /** Page with maximum width */
     private Size originalMaxWidthPageSize = new Size(0, 0);
     /** Page with maximum height */
@@ -53,8 +62,8 @@ class PdfFile {
     private SizeF maxWidthPageSize = new SizeF(0, 0);
     private boolean isVertical = true;
     private int spacingPx = 0;
-    /** Calculated offsets for pages */
-    private List<Float> pageOffsets = new ArrayList<>();
+    /** Calculated offsets for pages, in ascending order */
+    private float[] pageOffsets = new float[0];
     /** Calculated document length (width or height, depending on swipe mode) */
     private float documentLength = 0;
     private final FitPolicy pageFitPolicy;
@@ -63,46 +72,158 @@ class PdfFile {
      * (ex: 0, 2, 2, 8, 8, 1, 1, 1)
      */
     private int[] originalUserPages;
+    /** Last view size used to calculate page sizes */
+    private Size viewSize;
+    /** Number of pages, counting from the first one, which have real (not estimated) sizes */
+    private int loadedPageSizesCount = 0;
 
     PdfFile(PdfiumCore pdfiumCore, PdfDocument pdfDocument, FitPolicy pageFitPolicy, Size viewSize, int[] originalUserPages,
-            boolean isVertical, int spacing) {
+            boolean isVertical, int spacing, boolean lazyPageSizes, Size[] cachedPageSizes) {
         this.pdfiumCore = pdfiumCore;
         this.pdfDocument = pdfDocument;
         this.pageFitPolicy = pageFitPolicy;
         this.originalUserPages = originalUserPages;
         this.isVertical = isVertical;
         this.spacingPx = spacing;
-        setup(viewSize);
+        this.pageHandles = new PageHandleCache(pdfiumCore, pdfDocument, Constants.Cache.MAX_OPENED_PAGES);
+        setup(viewSize, lazyPageSizes, cachedPageSizes);
     }
 
-    private void setup(Size viewSize) {
+    /**
+     * @param cachedPageSizes sizes of all document pages read from {@link PageGeometryCache}, may be null
+     */
+    private void setup(Size viewSize, boolean lazyPageSizes, Size[] cachedPageSizes) {
         if (originalUserPages != null) {
             pagesCount = originalUserPages.length;
         } else {
             pagesCount = pdfiumCore.getPageCount(pdfDocument);
         }
 
-        for (int i = 0; i < pagesCount; i++) {
-            Size pageSize = pdfiumCore.getPageSize(pdfDocument, documentPage(i));
-
-            if (pageSize.getWidth() > originalMaxWidthPageSize.getWidth()) {
-                originalMaxWidthPageSize = pageSize;
+        if (cachedPageSizes != null) {
+            for (int i = 0; i < pagesCount; i++) {
+                int docPage = documentPage(i);
+                Size pageSize = docPage >= 0 && docPage < cachedPageSizes.length
+                        ? cachedPageSizes[docPage] : new Size(0, 0);
+                updateMaxPageSize(pageSize);
+                originalPageSizes.add(pageSize);
             }
-            if (pageSize.getHeight() > originalMaxHeightPageSize.getHeight()) {
-                originalMaxHeightPageSize = pageSize;
+            loadedPageSizesCount = pagesCount;
+        } else if (lazyPageSizes && pagesCount > 0) {
+            // size of the first page is used as an estimate of all pages,
+            // real sizes are loaded later with loadOriginalPageSize()
+            Size estimatedSize = pdfiumCore.getPageSize(pdfDocument, documentPage(0));
+            for (int i = 0; i < pagesCount; i++) {
+                originalPageSizes.add(estimatedSize);
             }
-            originalPageSizes.add(pageSize);
+            originalMaxWidthPageSize = estimatedSize;
+            originalMaxHeightPageSize = estimatedSize;
+            loadedPageSizesCount = 1;
+        } else {
+            for (int i = 0; i < pagesCount; i++) {
+                Size pageSize = pdfiumCore.getPageSize(pdfDocument, documentPage(i));
+                updateMaxPageSize(pageSize);
+                originalPageSizes.add(pageSize);
+            }
+            loadedPageSizesCount = pagesCount;
         }
 
         recalculatePageSizes(viewSize);
     }
 
+    private void updateMaxPageSize(Size pageSize) {
+        if (pageSize.getWidth() > originalMaxWidthPageSize.getWidth()) {
+            originalMaxWidthPageSize = pageSize;
+        }
+        if (pageSize.getHeight() > originalMaxHeightPageSize.getHeight()) {
+            originalMaxHeightPageSize = pageSize;
+        }
+    }
+
+    /** @return true if sizes of all pages are known, false if some of them are still estimated */
+    public boolean isPageSizesLoaded() {
+        return loadedPageSizesCount >= pagesCount;
+    }
+
+    /**
+     * Get sizes of all document pages, which can be stored in {@link PageGeometryCache}
+     *
+     * @return sizes indexed by document page or null if not all of them are known
+     */
+    Size[] getDocumentPageSizes() {
+        if (!isShowingAllDocumentPages() || !isPageSizesLoaded()) {
+            return null;
+        }
+        return originalPageSizes.toArray(new Size[originalPageSizes.size()]);
+    }
+
+    /** @return true if pages are displayed in document order, without filtering */
+    boolean isShowingAllDocumentPages() {
+        return originalUserPages == null;
+    }
+
+    public int getLoadedPageSizesCount() {
+        return loadedPageSizesCount;
+    }
+
+    /**
+     * Read real size of given page from document. May be called from background thread.
+     *
+     * @return page size or null if document has been already disposed
+     */
+    Size loadOriginalPageSize(int pageIndex) {
+        int docPage = documentPage(pageIndex);
+        synchronized (lock) {
+            if (pdfDocument == null || docPage < 0) {
+                return null;
+            }
+            return pdfiumCore.getPageSize(pdfDocument, docPage);
+        }
+    }
+
+    /**
+     * Replace estimated sizes of pages with real ones and recalculate page sizes, offsets and document length.
+     * Must be called from UI thread, as it changes layout of the document.
+     *
+     * @param sizes real sizes of pages, indexed by page
+     * @param from  first page to apply
+     * @param to    page after last one to apply
+     * @return pages whose scaled size changed, indexed by page, or null if no size changed. Sizes of pages
+     * outside of given range may change too, when maximum page size changes.
+     */
+    public boolean[] setOriginalPageSizes(Size[] sizes, int from, int to) {
+        List<SizeF> oldPageSizes = new ArrayList<>(pageSizes);
+        for (int i = from; i < to && i < pagesCount; i++) {
+            Size pageSize = sizes[i];
+            if (pageSize == null) {
+                continue;
+            }
+            updateMaxPageSize(pageSize);
+            originalPageSizes.set(i, pageSize);
+        }
+        loadedPageSizesCount = Math.max(loadedPageSizesCount, Math.min(to, pagesCount));
+        recalculatePageSizes(viewSize);
+
+        boolean[] changedPages = null;
+        for (int i = 0; i < pageSizes.size() && i < oldPageSizes.size(); i++) {
+            SizeF oldSize = oldPageSizes.get(i);
+            SizeF size = pageSizes.get(i);
+            if (oldSize.getWidth() != size.getWidth() || oldSize.getHeight() != size.getHeight()) {
+                if (changedPages == null) {
+                    changedPages = new boolean[pagesCount];
+                }
+                changedPages[i] = true;
+            }
+        }
+        return changedPages;
+    }
+
     /**
      * Call after view size change to recalculate page sizes, offsets and document length
      *
      * @param viewSize new size of changed view
      */
     public void recalculatePageSizes(Size viewSize) {
+        this.viewSize = viewSize;
         pageSizes.clear();
         PageSizeCalculator calculator = new PageSizeCalculator(pageFitPolicy, originalMaxWidthPageSize,
                 originalMaxHeightPageSize, viewSize);
@@ -162,14 +283,15 @@ class PdfFile {
     }
 
     private void preparePagesOffset() {
-        pageOffsets.clear();
+        float[] offsets = new float[getPagesCount()];
         float offset = 0;
-        for (int i = 0; i < getPagesCount(); i++) {
+        for (int i = 0; i < offsets.length; i++) {
             float spacing = i * spacingPx;
-            pageOffsets.add(offset + spacing);
+            offsets[i] = offset + spacing;
             SizeF size = pageSizes.get(i);
             offset += isVertical ? size.getHeight() : size.getWidth();
         }
+        pageOffsets = offsets;
     }
 
     public float getDocLen(float zoom) {
@@ -182,7 +304,7 @@ class PdfFile {
         if (docPage < 0) {
             return 0;
         }
-        return pageOffsets.get(pageIndex) * zoom;
+        return pageOffsets[pageIndex] * zoom;
     }
 
     /** Get secondary page offset, that is X for vertical scroll and Y for horizontal scroll */
@@ -197,16 +319,36 @@ class PdfFile {
         }
     }
 
+    /**
+     * Get page at given offset, that is the last page starting before the offset
+     *
+     * @param offset primary offset, Y for vertical scroll and X for horizontal scroll
+     * @param zoom   current zoom
+     * @return page index, 0 if offset is before first page
+     */
     public int getPageAtOffset(float offset, float zoom) {
-        int currentPage = 0;
-        for (float off : pageOffsets) {
-            if (off * zoom >= offset) {
-                break;
+        return findPageAtOffset(pageOffsets, offset, zoom);
+    }
+
+    /**
+     * Find the last page starting before given offset, with binary search
+     *
+     * @param offsets primary offsets of pages at zoom 1, in ascending order
+     * @return page index, 0 if offset is before first page
+     */
+    static int findPageAtOffset(float[] offsets, float offset, float zoom) {
+        int low = 0;
+        int high = offsets.length - 1;
+        // find last page with offset lower than given one
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] * zoom < offset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
             }
-            currentPage++;
         }
-
-        return --currentPage >= 0 ? currentPage : 0;
+        return high >= 0 ? high : 0;
     }
 
     public boolean openPage(int pageIndex) throws PageRenderingException {
@@ -216,62 +358,219 @@ class PdfFile {
         }
 
         synchronized (lock) {
-            if (openedPages.indexOfKey(docPage) < 0) {
-                try {
-                    pdfiumCore.openPage(pdfDocument, docPage);
-                    openedPages.put(docPage, true);
-                    return true;
-                } catch (Exception e) {
-                    openedPages.put(docPage, false);
-                    throw new PageRenderingException(pageIndex, e);
-                }
+            if (pdfDocument == null) {
+                return false;
             }
-            return false;
+            if (openedPages.indexOfKey(docPage) >= 0) {
+                pageHandles.touch(docPage);
+                return false;
+            }
+            try {
+                openDocumentPage(docPage);
+                return true;
+            } catch (Exception e) {
+                openedPages.put(docPage, false);
+                throw new PageRenderingException(pageIndex, e);
+            }
+        }
+    }
+
+    /**
+     * Open page, closing least recently used pages if too many are opened. Page already opened in the document
+     * by other code is used, but not added to {@link #pageHandles}, so it's never closed. Must be called under lock.
+     */
+    private void openDocumentPage(int docPage) {
+        if (pdfDocument.hasPage(docPage)) {
+            openedPages.put(docPage, true);
+            return;
+        }
+        long heapSize = PageHandleCache.nativeHeapSize();
+        pdfiumCore.openPage(pdfDocument, docPage);
+        openedPages.put(docPage, true);
+        pageHandles.add(docPage, PageHandleCache.nativeHeapSize() - heapSize);
+        pageHandles.trim(openedPages);
+    }
+
+    /** Mark document page opened outside this class, e.g. to render first page preview */
+    void markPageOpened(int docPage) {
+        synchronized (lock) {
+            openedPages.put(docPage, true);
+            pageHandles.add(docPage, 0);
+            pageHandles.trim(openedPages);
+        }
+    }
+
+    /** Prevent page from being closed until {@link #unpinPage(int)} is called, e.g. while it is rendered */
+    void pinPage(int pageIndex) {
+        int docPage = documentPage(pageIndex);
+        synchronized (lock) {
+            pageHandles.pin(docPage);
+        }
+    }
+
+    void unpinPage(int pageIndex) {
+        int docPage = documentPage(pageIndex);
+        synchronized (lock) {
+            pageHandles.unpin(docPage);
+            pageHandles.trim(openedPages);
+        }
+    }
+
+    /** Close opened pages which are not being rendered, until at most given number of pages is opened */
+    void closePages(int maxOpenedPages) {
+        synchronized (lock) {
+            pageHandles.trim(openedPages, maxOpenedPages);
+        }
+    }
+
+    /** Get number of pages currently opened in Pdfium */
+    int getOpenedPagesCount() {
+        synchronized (lock) {
+            return pageHandles.getOpenedCount();
+        }
+    }
+
+    /** Get rough estimate of native memory used by opened pages, in bytes, see {@link PageHandleCache} */
+    long getOpenedPagesMemory() {
+        synchronized (lock) {
+            return pageHandles.getNativeBytes();
         }
     }
 
     public boolean pageHasError(int pageIndex) {
         int docPage = documentPage(pageIndex);
-        return !openedPages.get(docPage, false);
+        synchronized (lock) {
+            return !openedPages.get(docPage, false);
+        }
     }
 
-    public void renderPageBitmap(Bitmap bitmap, int pageIndex, Rect bounds, boolean annotationRendering) {
+    /**
+     * Render part of page into given bitmap. Rendering is serialized with other document operations,
+     * as Pdfium does not support concurrent access to one document.
+     *
+     * @return time of Pdfium rendering in nanoseconds, without time spent waiting for locks,
+     * or -1 if document has been already disposed
+     */
+    public long renderPageBitmap(Bitmap bitmap, int pageIndex, Rect bounds, boolean annotationRendering) {
         int docPage = documentPage(pageIndex);
-        pdfiumCore.renderPageBitmap(pdfDocument, bitmap, docPage,
-                bounds.left, bounds.top, bounds.width(), bounds.height(), annotationRendering);
+        synchronized (lock) {
+            if (pdfDocument == null || !openedPages.get(docPage, false)) {
+                return -1;
+            }
+            // images decoded by the first rendering are cached with the page
+            boolean measure = pageHandles.shouldMeasureRender(docPage);
+            long heapSize = measure ? PageHandleCache.nativeHeapSize() : 0;
+            long renderTime;
+            // PdfiumCore takes its process-wide lock again, it's taken before the clock starts,
+            // so time spent waiting for rendering of other documents is not measured,
+            // unless the lock is not available, see PageHandleCache
+            Object pdfiumLock = PageHandleCache.getPdfiumLock();
+            synchronized (pdfiumLock != null ? pdfiumLock : lock) {
+                long start = System.nanoTime();
+                pdfiumCore.renderPageBitmap(pdfDocument, bitmap, docPage,
+                        bounds.left, bounds.top, bounds.width(), bounds.height(), annotationRendering);
+                renderTime = System.nanoTime() - start;
+            }
+            if (measure) {
+                pageHandles.addRenderMemory(docPage, PageHandleCache.nativeHeapSize() - heapSize);
+            } else {
+                pageHandles.touch(docPage);
+            }
+            return renderTime;
+        }
+    }
+
+    /**
+     * Render whole document page into given bitmap, e.g. thumbnail of {@link com.github.barteksc.pdfviewer.scroll.ThumbSeekScrollHandle}.
+     * Page is opened, rendered and closed with other pages of the document, like pages rendered by the view.
+     *
+     * @param docPage page index in document, regardless of displayed pages
+     * @return false if document has been already disposed or page cannot be opened
+     */
+    boolean renderDocumentPage(Bitmap bitmap, int docPage, Rect bounds) {
+        synchronized (lock) {
+            // pinned, so trimming of pages while opening it can't close it
+            pageHandles.pin(docPage);
+            try {
+                if (!ensurePageOpened(docPage)) {
+                    return false;
+                }
+                pdfiumCore.renderPageBitmap(pdfDocument, bitmap, docPage,
+                        bounds.left, bounds.top, bounds.width(), bounds.height(), false);
+                return true;
+            } finally {
+                pageHandles.unpin(docPage);
+                pageHandles.trim(openedPages);
+            }
+        }
     }
 
     public PdfDocument.Meta getMetaData() {
-        if (pdfDocument == null) {
-            return null;
+        synchronized (lock) {
+            if (pdfDocument == null) {
+                return null;
+            }
+            return pdfiumCore.getDocumentMeta(pdfDocument);
         }
-        return pdfiumCore.getDocumentMeta(pdfDocument);
     }
 
     public List<PdfDocument.Bookmark> getBookmarks() {
-        if (pdfDocument == null) {
-            return new ArrayList<>();
+        synchronized (lock) {
+            if (pdfDocument == null) {
+                return new ArrayList<>();
+            }
+            return pdfiumCore.getTableOfContents(pdfDocument);
         }
-        return pdfiumCore.getTableOfContents(pdfDocument);
     }
 
     public List<PdfDocument.Link> getPageLinks(int pageIndex) {
         int docPage = documentPage(pageIndex);
-        return pdfiumCore.getPageLinks(pdfDocument, docPage);
+        synchronized (lock) {
+            if (!ensurePageOpened(docPage)) {
+                return new ArrayList<>();
+            }
+            return pdfiumCore.getPageLinks(pdfDocument, docPage);
+        }
     }
 
     public RectF mapRectToDevice(int pageIndex, int startX, int startY, int sizeX, int sizeY,
                                  RectF rect) {
         int docPage = documentPage(pageIndex);
-        return pdfiumCore.mapRectToDevice(pdfDocument, docPage, startX, startY, sizeX, sizeY, 0, rect);
+        synchronized (lock) {
+            if (!ensurePageOpened(docPage)) {
+                return rect;
+            }
+            return pdfiumCore.mapRectToDevice(pdfDocument, docPage, startX, startY, sizeX, sizeY, 0, rect);
+        }
     }
 
-    public void dispose() {
-        if (pdfiumCore != null && pdfDocument != null) {
-            pdfiumCore.closeDocument(pdfDocument);
+    /** Open page if it was closed, as links need opened page. Must be called under lock. */
+    private boolean ensurePageOpened(int docPage) {
+        if (pdfDocument == null || docPage < 0) {
+            return false;
+        }
+        if (openedPages.indexOfKey(docPage) >= 0) {
+            pageHandles.touch(docPage);
+            return openedPages.get(docPage);
         }
+        try {
+            openDocumentPage(docPage);
+            return true;
+        } catch (Exception e) {
+            openedPages.put(docPage, false);
+            return false;
+        }
+    }
+
+    public void dispose() {
+        synchronized (lock) {
+            if (pdfiumCore != null && pdfDocument != null) {
+                pdfiumCore.closeDocument(pdfDocument);
+            }
+            pageHandles.clear();
 
-        pdfDocument = null;
+            pdfDocument = null;
+        }
         originalUserPages = null;
     }
 
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import com.github.barteksc.pdfviewer.util.Constants;
+
+/**
+ * Estimates rendering time of pages, from times of previous renders.
+ * Costs are kept in milliseconds per megapixel, as moving averages per page and for the whole document.
+ * <p>
+ * Model is also used to choose size of parts of every page: cheap pages use bigger parts,
+ * which need less Pdfium calls, expensive pages use smaller parts, which keep rendering responsive.
+ */
+class RenderCostModel {
+
+    /** Weight of the newest sample in moving averages */
+    private static final float SMOOTHING = 0.3f;
+
+    /** Cost per page, 0 if page was not rendered yet */
+    private final float[] pageCosts;
+
+    private float documentCost = 0;
+
+    /** Part size chosen for page, 0 if not chosen yet */
+    private final int[] partSizes;
+
+    RenderCostModel(int pagesCount) {
+        pageCosts = new float[Math.max(0, pagesCount)];
+        partSizes = new int[pageCosts.length];
+    }
+
+    /**
+     * Record finished render of a full resolution part, thumbnails and previews are not recorded
+     *
+     * @param pixels number of rendered pixels
+     * @param nanos  Pdfium rendering time in nanoseconds, without time spent waiting for locks
+     */
+    synchronized void record(int page, int pixels, long nanos) {
+        if (pixels <= 0 || page < 0 || page >= pageCosts.length) {
+            return;
+        }
+        float cost = (nanos / 1e6f) / (pixels / 1e6f);
+        pageCosts[page] = average(pageCosts[page], cost);
+        documentCost = average(documentCost, cost);
+    }
+
+    /**
+     * Get estimated cost of given page, document average is used for pages not rendered yet
+     *
+     * @return milliseconds per megapixel, 0 if nothing was rendered yet
+     */
+    synchronized float getCost(int page) {
+        if (page >= 0 && page < pageCosts.length && pageCosts[page] > 0) {
+            return pageCosts[page];
+        }
+        return documentCost;
+    }
+
+    /**
+     * Get size of parts of given page, so that rendering of one part takes about {@link Constants#ADAPTIVE_PART_TIME}.
+     * Size is snapped to {@link Constants#PART_SIZE_STEP} and clamped to {@link Constants#MIN_PART_SIZE}
+     * and {@link Constants#MAX_PART_SIZE}. Once cost of the page is known, its part size doesn't change,
+     * so cached parts are not invalidated by a changed grid.
+     *
+     * @return part size in pixels
+     */
+    synchronized float getPartSize(int page) {
+        if (page < 0 || page >= partSizes.length) {
+            return Constants.PART_SIZE;
+        }
+        if (partSizes[page] > 0) {
+            return partSizes[page];
+        }
+        float cost = getCost(page);
+        if (cost <= 0) {
+            return Constants.PART_SIZE;
+        }
+        float size = (float) Math.sqrt(Constants.ADAPTIVE_PART_TIME * 1e6f / cost);
+        int step = Constants.PART_SIZE_STEP;
+        int snapped = Math.round(size / step) * step;
+        snapped = Math.max(Constants.MIN_PART_SIZE, Math.min(Constants.MAX_PART_SIZE, snapped));
+        if (pageCosts[page] > 0) {
+            partSizes[page] = snapped;
+        }
+        return snapped;
+    }
+
+    /** Get estimated time of rendering given number of pixels of a page, in milliseconds */
+    float estimateTime(int page, int pixels) {
+        return getCost(page) * pixels / 1e6f;
+    }
+
+    private static float average(float average, float sample) {
+        return average > 0 ? average + SMOOTHING * (sample - average) : sample;
+    }
+}
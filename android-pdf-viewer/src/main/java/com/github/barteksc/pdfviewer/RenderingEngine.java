@@ -0,0 +1,233 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.github.barteksc.pdfviewer.util.Constants;
+import com.github.barteksc.pdfviewer.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide rendering engine shared by views with shared rendering enabled. Instead of starting
+ * own workers, every {@link RenderingHandler} registers here and tasks of all handlers are processed
+ * by one set of workers.
+ * <p>
+ * Workers take the task with the highest priority class of all handlers, so visible parts of every view
+ * are rendered before preloaded ones. Among handlers with equal priority class the focused view goes first,
+ * then the view with the fewest tasks being rendered, so views get a fair share of workers, then the view
+ * with the highest exact priority, e.g. visible thumbnails before visible parts.
+ * <p>
+ * Registered views share one bitmap pool and one memory budget for cached parts, divided among them
+ * with a bigger quota for the focused view. The focused view is the one touched last.
+ */
+class RenderingEngine {
+
+    private static RenderingEngine instance;
+
+    private final List<RenderingHandler> handlers = new ArrayList<>();
+
+    private final BitmapPool bitmapPool = new BitmapPool(Constants.Cache.BITMAP_POOL_SIZE);
+
+    /** Memory budget for cached parts of all views, in bytes */
+    private final long maxBytes;
+
+    private final int workersCount;
+
+    private Thread[] workers;
+
+    private PDFView focusedView;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable updateQuotasRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateQuotas();
+        }
+    };
+
+    private RenderingEngine(Context context) {
+        this.maxBytes = Util.getDefaultCacheSize(context);
+        this.workersCount = Util.getDefaultRenderingThreads();
+    }
+
+    static synchronized RenderingEngine getInstance(Context context) {
+        if (instance == null) {
+            instance = new RenderingEngine(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /** Start processing tasks of given handler, workers are started with the first handler */
+    void register(RenderingHandler handler) {
+        synchronized (this) {
+            if (handlers.contains(handler)) {
+                return;
+            }
+            handlers.add(handler);
+            if (workers == null) {
+                workers = new Thread[workersCount];
+                for (int i = 0; i < workers.length; i++) {
+                    workers[i] = new Worker("PDF shared renderer #" + i);
+                    workers[i].start();
+                }
+            }
+            notifyAll();
+        }
+        updateQuotas();
+    }
+
+    /** Stop processing tasks of given handler, workers are stopped with the last handler */
+    void unregister(RenderingHandler handler) {
+        synchronized (this) {
+            if (!handlers.remove(handler)) {
+                return;
+            }
+            if (focusedView == handler.getPdfView()) {
+                focusedView = null;
+            }
+            if (handlers.isEmpty() && workers != null) {
+                for (Thread worker : workers) {
+                    worker.interrupt();
+                }
+                workers = null;
+            }
+        }
+        updateQuotas();
+    }
+
+    /** Give rendering priority and bigger memory quota to given view */
+    void setFocusedView(PDFView view) {
+        synchronized (this) {
+            if (focusedView == view) {
+                return;
+            }
+            focusedView = view;
+        }
+        updateQuotas();
+    }
+
+    /** Wake up workers waiting for tasks */
+    synchronized void onTasksAdded() {
+        notifyAll();
+    }
+
+    /** Divide memory budget among registered views, on UI thread where cache managers are used */
+    private void updateQuotas() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mainHandler.post(updateQuotasRunnable);
+            return;
+        }
+        List<PDFView> views = new ArrayList<>();
+        PDFView focused;
+        synchronized (this) {
+            for (RenderingHandler handler : handlers) {
+                views.add(handler.getPdfView());
+            }
+            focused = focusedView;
+        }
+        if (views.isEmpty()) {
+            return;
+        }
+        int weights = views.size() + (focused != null ? Constants.Cache.FOCUSED_VIEW_WEIGHT - 1 : 0);
+        long quota = maxBytes / weights;
+        for (PDFView view : views) {
+            view.cacheManager.setMaxBytes(view == focused ? quota * Constants.Cache.FOCUSED_VIEW_WEIGHT : quota);
+        }
+    }
+
+    /** Must be called with engine locked */
+    private RenderingHandler selectHandler() {
+        RenderingHandler selected = null;
+        int selectedPriority = Integer.MAX_VALUE;
+        boolean selectedFocused = false;
+        int selectedInFlight = 0;
+        for (int i = 0; i < handlers.size(); i++) {
+            RenderingHandler handler = handlers.get(i);
+            int priority = handler.peekPriority();
+            if (priority == Integer.MAX_VALUE) {
+                continue;
+            }
+            boolean focused = handler.getPdfView() == focusedView;
+            int inFlight = handler.getInFlightTasksCount();
+            if (selected == null
+                    || compare(priority, focused, inFlight, selectedPriority, selectedFocused, selectedInFlight) < 0) {
+                selected = handler;
+                selectedPriority = priority;
+                selectedFocused = focused;
+                selectedInFlight = inFlight;
+            }
+        }
+        return selected;
+    }
+
+    /** Compare handlers by priority class, focus, number of tasks being rendered and exact priority */
+    private static int compare(int priority1, boolean focused1, int inFlight1,
+                               int priority2, boolean focused2, int inFlight2) {
+        int class1 = getPriorityClass(priority1);
+        int class2 = getPriorityClass(priority2);
+        if (class1 != class2) {
+            return class1 < class2 ? -1 : 1;
+        }
+        if (focused1 != focused2) {
+            return focused1 ? -1 : 1;
+        }
+        if (inFlight1 != inFlight2) {
+            return inFlight1 < inFlight2 ? -1 : 1;
+        }
+        return priority1 < priority2 ? -1 : (priority1 == priority2 ? 0 : 1);
+    }
+
+    /** Visible tasks, including visible thumbnails, form one class, other priorities are classes of their own */
+    private static int getPriorityClass(int priority) {
+        return priority <= RenderingHandler.PRIORITY_VISIBLE ? RenderingHandler.PRIORITY_VISIBLE : priority;
+    }
+
+    private class Worker extends Thread {
+
+        private final RenderingHandler.RenderBuffers buffers = new RenderingHandler.RenderBuffers();
+
+        Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    RenderingHandler handler;
+                    synchronized (RenderingEngine.this) {
+                        while ((handler = selectHandler()) == null) {
+                            RenderingEngine.this.wait();
+                        }
+                    }
+                    handler.runNextTask(buffers);
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+    }
+}
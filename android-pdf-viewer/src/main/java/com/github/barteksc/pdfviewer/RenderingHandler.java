@@ -19,65 +19,374 @@ import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 
 import com.github.barteksc.pdfviewer.exception.PageRenderingException;
 import com.github.barteksc.pdfviewer.model.PagePart;
+import com.github.barteksc.pdfviewer.util.Constants;
+import com.github.barteksc.pdfviewer.util.Util;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
 
 /**
- * A {@link Handler} that will process incoming {@link RenderingTask} messages
+ * Pool of rendering workers, which process {@link RenderingTask}s from a shared queue
  * and alert {@link PDFView#onBitmapRendered(PagePart)} when the portion of the
  * PDF is ready to render.
+ * <p>
+ * Tasks are taken by priority and then by distance from viewport center. Tasks are requested
+ * in passes, see {@link #beginPass()} and {@link #endPass()}: queued tasks requested again get
+ * their new priorities, tasks being rendered are not queued again and tasks not requested
+ * in a pass are cancelled. A task stays in flight until its part is cached on UI thread,
+ * see {@link #onPartCached(PagePart)}, so a part waiting to be cached is never requested again.
+ * <p>
+ * Workers only overlap work done outside Pdfium: bitmap allocation, disk cache reads
+ * and post-processing. Pdfium calls, including page rendering itself, are serialized
+ * by {@link PdfFile} and by the process-wide lock of PdfiumCore, so more workers don't
+ * render pages faster, see {@link Constants#MAX_RENDERING_THREADS}.
+ * <p>
+ * In progressive mode, parts of pages estimated by {@link RenderCostModel} as expensive are first
+ * rendered in lower resolution and posted as previews, then the same task is queued again
+ * to render the part in full resolution.
+ * <p>
+ * Tasks are processed either by own workers of the handler or by workers of shared {@link RenderingEngine},
+ * which take tasks from all registered handlers.
  */
-class RenderingHandler extends Handler {
-    /**
-     * {@link Message#what} kind of message this handler processes.
-     */
-    static final int MSG_RENDER_TASK = 1;
+class RenderingHandler {
 
     private static final String TAG = RenderingHandler.class.getName();
 
-    private PDFView pdfView;
+    /** Thumbnail of a page visible on screen */
+    static final int PRIORITY_VISIBLE_THUMBNAIL = 0;
+
+    /** Part visible on screen */
+    static final int PRIORITY_VISIBLE = 1;
+
+    /** Part or thumbnail in preloaded area */
+    static final int PRIORITY_PRELOAD = 2;
+
+    /** Task not requested again in current pass, cancelled when the pass ends */
+    static final int PRIORITY_STALE = 3;
+
+    private final PDFView pdfView;
+
+    private final PdfFile pdfFile;
+
+    /** Cache of rendered parts on disk, null if disabled */
+    private volatile DiskTileCache diskCache;
+
+    private final String documentId;
+
+    /** Tasks waiting for a worker, ordered by priority, guarded by itself */
+    private final PriorityQueue<RenderingTask> tasks = new PriorityQueue<>(16, new RenderingTaskComparator());
+
+    /** Tasks waiting for a worker, indexed by their keys, guarded by {@link #tasks} */
+    private final HashMap<TileKey, RenderingTask> queuedTasks = new HashMap<>();
+
+    /** Key reused for lookups, guarded by {@link #tasks} */
+    private final TileKey lookupKey = new TileKey();
 
-    private RectF renderBounds = new RectF();
-    private Rect roundedRenderBounds = new Rect();
-    private Matrix renderMatrix = new Matrix();
-    private boolean running = false;
+    /** Tasks being rendered or waiting to be cached, indexed by their keys, guarded by {@link #tasks} */
+    private final HashMap<TileKey, RenderingTask> inFlightTasks = new HashMap<>();
 
-    RenderingHandler(Looper looper, PDFView pdfView) {
-        super(looper);
+    /** True if priorities changed and {@link #tasks} has to be reordered, guarded by {@link #tasks} */
+    private boolean tasksOrderChanged = false;
+
+    /** Number of queued tasks cancelled because they were not requested again, guarded by {@link #tasks} */
+    private int cancelledTasks = 0;
+
+    /** Number of rendered parts which were not used, guarded by {@link #tasks} */
+    private int wastedRenders = 0;
+
+    private final Worker[] workers;
+
+    /** Shared engine processing tasks of this handler, null if handler has own workers */
+    private final RenderingEngine engine;
+
+    private final RenderCostModel costModel;
+
+    private volatile boolean running = false;
+
+    /**
+     * @param diskCache  cache of rendered parts on disk, null to always render parts with Pdfium
+     * @param documentId id of the document used as a key in disk cache
+     * @param engine     shared engine rendering tasks of this handler, null to start own workers
+     */
+    RenderingHandler(PDFView pdfView, PdfFile pdfFile, int workersCount, DiskTileCache diskCache, String documentId,
+                     RenderingEngine engine) {
         this.pdfView = pdfView;
+        this.pdfFile = pdfFile;
+        this.diskCache = documentId != null ? diskCache : null;
+        this.documentId = documentId;
+        this.engine = engine;
+        this.workers = new Worker[engine != null ? 0 : Math.max(1, workersCount)];
+        this.costModel = new RenderCostModel(pdfFile.getPagesCount());
+    }
+
+    /**
+     * Add new task or update priority of the same task if it's already queued.
+     * Nothing is added if the same task is being rendered.
+     *
+     * @param priority one of PRIORITY_* constants
+     * @param distance distance of the part from viewport center, used to order tasks with the same priority
+     */
+    void addRenderingTask(int page, float width, float height, RectF bounds, boolean thumbnail, int level,
+                          int cacheOrder, boolean bestQuality, boolean annotationRendering, int priority, float distance) {
+        synchronized (tasks) {
+            lookupKey.set(page, bounds, thumbnail, level);
+            if (inFlightTasks.containsKey(lookupKey)) {
+                return;
+            }
+
+            RenderingTask task = queuedTasks.get(lookupKey);
+            if (task != null) {
+                // size changes when real size of the page replaces an estimated one
+                task.width = width;
+                task.height = height;
+                task.cacheOrder = cacheOrder;
+                task.priority = priority;
+                task.distance = distance;
+                tasksOrderChanged = true;
+                return;
+            }
+
+            task = new RenderingTask(width, height, bounds, page, thumbnail, level, cacheOrder, bestQuality,
+                    annotationRendering);
+            task.priority = priority;
+            task.distance = distance;
+            queuedTasks.put(task.key, task);
+            tasks.offer(task);
+            tasks.notify();
+        }
+    }
+
+    /**
+     * Start requesting tasks for the new viewport, all queued tasks are marked as stale
+     * until they are requested again
+     */
+    void beginPass() {
+        synchronized (tasks) {
+            for (RenderingTask task : queuedTasks.values()) {
+                task.priority = PRIORITY_STALE;
+            }
+            tasksOrderChanged = true;
+        }
+    }
+
+    /** Finish requesting tasks for the new viewport, queued tasks which were not requested are cancelled */
+    void endPass() {
+        synchronized (tasks) {
+            Iterator<RenderingTask> iterator = queuedTasks.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().priority == PRIORITY_STALE) {
+                    iterator.remove();
+                    cancelledTasks++;
+                    tasksOrderChanged = true;
+                }
+            }
+            if (tasksOrderChanged) {
+                tasks.clear();
+                tasks.addAll(queuedTasks.values());
+                tasksOrderChanged = false;
+            }
+        }
+        if (engine != null) {
+            engine.onTasksAdded();
+        }
+    }
+
+    /**
+     * Cancel queued and in-flight tasks of given pages, e.g. after their sizes changed.
+     * Parts of cancelled in-flight tasks are dropped, and the same parts can be requested again right away.
+     *
+     * @param pages pages to cancel, indexed by page
+     */
+    void cancelPageTasks(boolean[] pages) {
+        synchronized (tasks) {
+            Iterator<RenderingTask> iterator = queuedTasks.values().iterator();
+            while (iterator.hasNext()) {
+                RenderingTask task = iterator.next();
+                if (task.page < pages.length && pages[task.page]) {
+                    iterator.remove();
+                    cancelledTasks++;
+                    tasksOrderChanged = true;
+                }
+            }
+            iterator = inFlightTasks.values().iterator();
+            while (iterator.hasNext()) {
+                RenderingTask task = iterator.next();
+                if (task.page < pages.length && pages[task.page]) {
+                    iterator.remove();
+                }
+            }
+            restoreTasksOrder();
+        }
     }
 
-    void addRenderingTask(int page, float width, float height, RectF bounds, boolean thumbnail, int cacheOrder, boolean bestQuality, boolean annotationRendering) {
-        RenderingTask task = new RenderingTask(width, height, bounds, page, thumbnail, cacheOrder, bestQuality, annotationRendering);
-        Message msg = obtainMessage(MSG_RENDER_TASK, task);
-        sendMessage(msg);
+    /** Count rendered part which was not used, e.g. because it had been already cached */
+    void onRenderWasted() {
+        synchronized (tasks) {
+            wastedRenders++;
+        }
     }
 
-    @Override
-    public void handleMessage(Message message) {
-        RenderingTask task = (RenderingTask) message.obj;
-        if (task == null)
-            return;
+    int getCancelledTasksCount() {
+        synchronized (tasks) {
+            return cancelledTasks;
+        }
+    }
+
+    int getWastedRendersCount() {
+        synchronized (tasks) {
+            return wastedRenders;
+        }
+    }
+
+    int getQueuedTasksCount() {
+        synchronized (tasks) {
+            return queuedTasks.size();
+        }
+    }
 
+    /** Remove all tasks not taken by workers yet */
+    void clearTasks() {
+        synchronized (tasks) {
+            cancelledTasks += queuedTasks.size();
+            tasks.clear();
+            queuedTasks.clear();
+        }
+    }
+
+    private RenderingTask takeTask() throws InterruptedException {
+        synchronized (tasks) {
+            while (tasks.isEmpty()) {
+                tasks.wait();
+            }
+            return pollTask();
+        }
+    }
+
+    /** @return task with the highest priority or null if there are no queued tasks */
+    RenderingTask pollTask() {
+        synchronized (tasks) {
+            if (tasks.isEmpty()) {
+                return null;
+            }
+            restoreTasksOrder();
+            RenderingTask task = tasks.poll();
+            queuedTasks.remove(task.key);
+            inFlightTasks.put(task.key, task);
+            return task;
+        }
+    }
+
+    /** Priorities may be modified in place, restore heap order. Must be called with {@link #tasks} locked. */
+    private void restoreTasksOrder() {
+        if (tasksOrderChanged) {
+            tasks.clear();
+            tasks.addAll(queuedTasks.values());
+            tasksOrderChanged = false;
+        }
+    }
+
+    /** @return priority of the next queued task, {@link Integer#MAX_VALUE} if there are no queued tasks */
+    int peekPriority() {
+        synchronized (tasks) {
+            if (tasks.isEmpty()) {
+                return Integer.MAX_VALUE;
+            }
+            restoreTasksOrder();
+            return tasks.peek().priority;
+        }
+    }
+
+    int getInFlightTasksCount() {
+        synchronized (tasks) {
+            return inFlightTasks.size();
+        }
+    }
+
+    /**
+     * Render the next queued task on the calling thread, used by {@link RenderingEngine}
+     *
+     * @return false if there were no queued tasks
+     */
+    boolean runNextTask(RenderBuffers buffers) {
+        RenderingTask task = pollTask();
+        if (task == null) {
+            return false;
+        }
+        handleTask(buffers, task);
+        return true;
+    }
+
+    PDFView getPdfView() {
+        return pdfView;
+    }
+
+    private void handleTask(RenderBuffers buffers, RenderingTask task) {
+        PagePart part = null;
         try {
-            final PagePart part = proceed(task);
-            if (part != null) {
-                if (running) {
-                    pdfView.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            pdfView.onBitmapRendered(part);
-                        }
-                    });
-                } else {
-                    part.getRenderedBitmap().recycle();
+            part = renderTask(buffers, task);
+        } finally {
+            if (part == null) {
+                synchronized (tasks) {
+                    if (isInFlight(task)) {
+                        inFlightTasks.remove(task.key);
+                    }
                 }
             }
+        }
+        if (part != null) {
+            postPart(part, task);
+        }
+    }
+
+    /** @return false if task was cancelled while being rendered, see {@link #cancelPageTasks(boolean[])} */
+    private boolean isInFlight(RenderingTask task) {
+        synchronized (tasks) {
+            return inFlightTasks.get(task.key) == task;
+        }
+    }
+
+    /**
+     * Finish task of the part, called on UI thread after the part is cached.
+     * Task of a preview is queued again to render the part in full resolution.
+     */
+    void onPartCached(PagePart part) {
+        RenderingTask task;
+        synchronized (tasks) {
+            task = inFlightTasks.get(lookupKey.set(part));
+        }
+        if (task != null) {
+            finishTask(task, part.isPreview());
+        }
+    }
+
+    private void finishTask(RenderingTask task, boolean preview) {
+        boolean requeued = false;
+        synchronized (tasks) {
+            if (!isInFlight(task)) {
+                return;
+            }
+            inFlightTasks.remove(task.key);
+            if (preview && running) {
+                queuedTasks.put(task.key, task);
+                tasks.offer(task);
+                tasks.notify();
+                requeued = true;
+            }
+        }
+        if (requeued && engine != null) {
+            engine.onTasksAdded();
+        }
+    }
+
+    private PagePart renderTask(RenderBuffers buffers, RenderingTask task) {
+        try {
+            return proceed(buffers, task);
         } catch (final PageRenderingException ex) {
             pdfView.post(new Runnable() {
                 @Override
@@ -85,55 +394,251 @@ class RenderingHandler extends Handler {
                     pdfView.onPageError(ex);
                 }
             });
+            return null;
         }
     }
 
-    private PagePart proceed(RenderingTask renderingTask) throws PageRenderingException {
-        PdfFile pdfFile = pdfView.pdfFile;
-        pdfFile.openPage(renderingTask.page);
+    private void postPart(final PagePart part, final RenderingTask task) {
+        if (running) {
+            pdfView.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (running && isInFlight(task)) {
+                        pdfView.onBitmapRendered(part);
+                    } else {
+                        dropPart(part, task);
+                    }
+                }
+            });
+        } else {
+            dropPart(part, task);
+        }
+    }
+
+    private void dropPart(PagePart part, RenderingTask task) {
+        onRenderWasted();
+        pdfView.cacheManager.getBitmapPool().put(part.getRenderedBitmap());
+        finishTask(task, part.isPreview());
+    }
 
+    /**
+     * @return true if some visible parts or thumbnails are queued, being rendered or rendered but not cached yet,
+     * see {@link #onPartCached(PagePart)}
+     */
+    boolean hasVisibleTasks() {
+        synchronized (tasks) {
+            for (RenderingTask task : queuedTasks.values()) {
+                if (task.priority <= PRIORITY_VISIBLE) {
+                    return true;
+                }
+            }
+            for (RenderingTask task : inFlightTasks.values()) {
+                if (task.priority <= PRIORITY_VISIBLE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    RenderCostModel getCostModel() {
+        return costModel;
+    }
+
+    /** Stop using disk cache, must be called before the cache is released */
+    void detachDiskCache() {
+        diskCache = null;
+    }
+
+    void stop() {
+        running = false;
+        detachDiskCache();
+        clearTasks();
+        if (engine != null) {
+            engine.unregister(this);
+        }
+        for (Worker worker : workers) {
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    void start() {
+        running = true;
+        if (engine != null) {
+            engine.register(this);
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("PDF renderer #" + i);
+            workers[i].start();
+        }
+    }
+
+    private PagePart proceed(RenderBuffers buffers, RenderingTask renderingTask) throws PageRenderingException {
         int w = Math.round(renderingTask.width);
         int h = Math.round(renderingTask.height);
 
-        if (w == 0 || h == 0 || pdfFile.pageHasError(renderingTask.page)) {
+        if (w == 0 || h == 0) {
             return null;
         }
 
+        BitmapPool bitmapPool = pdfView.cacheManager.getBitmapPool();
+        Bitmap.Config config = renderingTask.bestQuality ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
         Bitmap render;
         try {
-            render = Bitmap.createBitmap(w, h, renderingTask.bestQuality ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565);
+            render = bitmapPool.get(w, h, config);
         } catch (IllegalArgumentException e) {
             Log.e(TAG, "Cannot create bitmap", e);
             return null;
         }
-        calculateBounds(w, h, renderingTask.bounds);
 
-        pdfFile.renderPageBitmap(render, renderingTask.page, roundedRenderBounds, renderingTask.annotationRendering);
+        String diskKey = null;
+        DiskTileCache diskCache = this.diskCache;
+        if (diskCache != null) {
+            diskKey = DiskTileCache.buildKey(documentId, pdfFile.documentPage(renderingTask.page),
+                    renderingTask.bounds, w, h, config, renderingTask.annotationRendering);
+            Util.beginSection("PDFView#diskCacheGet");
+            boolean found;
+            try {
+                found = diskCache.get(diskKey, render);
+            } finally {
+                Util.endSection();
+            }
+            if (found) {
+                return new PagePart(renderingTask.page, render,
+                        renderingTask.bounds, renderingTask.thumbnail,
+                        renderingTask.cacheOrder, renderingTask.level);
+            }
+        }
+
+        // page must not be closed between opening and rendering
+        pdfFile.pinPage(renderingTask.page);
+        try {
+            return renderPart(buffers, renderingTask, render, config, w, h, diskKey);
+        } finally {
+            pdfFile.unpinPage(renderingTask.page);
+        }
+    }
+
+    private PagePart renderPart(RenderBuffers buffers, RenderingTask renderingTask, Bitmap render,
+                                Bitmap.Config config, int w, int h, String diskKey) throws PageRenderingException {
+        BitmapPool bitmapPool = pdfView.cacheManager.getBitmapPool();
+        try {
+            pdfFile.openPage(renderingTask.page);
+        } catch (PageRenderingException e) {
+            bitmapPool.put(render);
+            throw e;
+        }
+        if (pdfFile.pageHasError(renderingTask.page)) {
+            bitmapPool.put(render);
+            return null;
+        }
+
+        boolean preview = shouldRenderPreview(renderingTask, w, h);
+        if (preview) {
+            renderingTask.previewRendered = true;
+            bitmapPool.put(render);
+            w = Math.max(1, Math.round(w * Constants.PROGRESSIVE_PREVIEW_RATIO));
+            h = Math.max(1, Math.round(h * Constants.PROGRESSIVE_PREVIEW_RATIO));
+            try {
+                render = bitmapPool.get(w, h, config);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Cannot create bitmap", e);
+                return null;
+            }
+        }
+
+        calculateBounds(buffers, w, h, renderingTask.bounds);
+
+        long start = System.nanoTime();
+        long renderTime;
+        Util.beginSection("PDFView#renderPageBitmap");
+        try {
+            renderTime = pdfFile.renderPageBitmap(render, renderingTask.page, buffers.roundedRenderBounds,
+                    renderingTask.annotationRendering);
+        } finally {
+            Util.endSection();
+        }
+        if (renderTime < 0) {
+            bitmapPool.put(render);
+            return null;
+        }
+        if (!renderingTask.thumbnail && !preview) {
+            // thumbnails and previews cost per pixel differently, part sizes are chosen from parts only;
+            // render time excludes waiting for other workers, so cost doesn't grow with contention
+            costModel.record(renderingTask.page, w * h, renderTime);
+        }
+        long lockWaitTime = Math.max(0, System.nanoTime() - start - renderTime);
+        pdfView.metrics.recordRender(renderingTask.page, renderTime, lockWaitTime);
+
+        DiskTileCache diskCache = this.diskCache;
+        if (diskKey != null && diskCache != null && !preview) {
+            diskCache.put(diskKey, render, bitmapPool);
+        }
 
         return new PagePart(renderingTask.page, render,
                 renderingTask.bounds, renderingTask.thumbnail,
-                renderingTask.cacheOrder);
+                renderingTask.cacheOrder, renderingTask.level, preview);
     }
 
-    private void calculateBounds(int width, int height, RectF pageSliceBounds) {
+    /**
+     * Preview is rendered once per task, if full resolution part is expected to render long.
+     * Estimate comes from Pdfium render times without lock waits, so busy workers don't make cheap pages
+     * look expensive and get needless previews.
+     */
+    private boolean shouldRenderPreview(RenderingTask renderingTask, int width, int height) {
+        if (renderingTask.thumbnail || renderingTask.previewRendered || !pdfView.isProgressiveRendering()) {
+            return false;
+        }
+        if (costModel.estimateTime(renderingTask.page, width * height) < Constants.PROGRESSIVE_RENDERING_TIME) {
+            return false;
+        }
+        // preview may be left in cache by cancelled task
+        return !pdfView.cacheManager.containsPreview(renderingTask.key);
+    }
+
+    private void calculateBounds(RenderBuffers buffers, int width, int height, RectF pageSliceBounds) {
+        Matrix renderMatrix = buffers.renderMatrix;
         renderMatrix.reset();
         renderMatrix.postTranslate(-pageSliceBounds.left * width, -pageSliceBounds.top * height);
         renderMatrix.postScale(1 / pageSliceBounds.width(), 1 / pageSliceBounds.height());
 
-        renderBounds.set(0, 0, width, height);
-        renderMatrix.mapRect(renderBounds);
-        renderBounds.round(roundedRenderBounds);
+        buffers.renderBounds.set(0, 0, width, height);
+        renderMatrix.mapRect(buffers.renderBounds);
+        buffers.renderBounds.round(buffers.roundedRenderBounds);
     }
 
-    void stop() {
-        running = false;
+    /** Objects reused by one rendering thread */
+    static class RenderBuffers {
+        final RectF renderBounds = new RectF();
+        final Rect roundedRenderBounds = new Rect();
+        final Matrix renderMatrix = new Matrix();
     }
 
-    void start() {
-        running = true;
+    private class Worker extends Thread {
+
+        private final RenderBuffers buffers = new RenderBuffers();
+
+        Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    handleTask(buffers, takeTask());
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
     }
 
-    private class RenderingTask {
+    static class RenderingTask {
+
+        final TileKey key;
 
         float width, height;
 
@@ -143,21 +648,43 @@ class RenderingHandler extends Handler {
 
         boolean thumbnail;
 
+        int level;
+
+        /** True if preview of the part has been already rendered */
+        boolean previewRendered;
+
         int cacheOrder;
 
         boolean bestQuality;
 
         boolean annotationRendering;
 
-        RenderingTask(float width, float height, RectF bounds, int page, boolean thumbnail, int cacheOrder, boolean bestQuality, boolean annotationRendering) {
+        int priority;
+
+        float distance;
+
+        RenderingTask(float width, float height, RectF bounds, int page, boolean thumbnail, int level, int cacheOrder,
+                      boolean bestQuality, boolean annotationRendering) {
             this.page = page;
             this.width = width;
             this.height = height;
             this.bounds = bounds;
             this.thumbnail = thumbnail;
+            this.level = level;
             this.cacheOrder = cacheOrder;
             this.bestQuality = bestQuality;
             this.annotationRendering = annotationRendering;
+            this.key = new TileKey(page, bounds, thumbnail, level);
+        }
+    }
+
+    private static class RenderingTaskComparator implements Comparator<RenderingTask> {
+        @Override
+        public int compare(RenderingTask task1, RenderingTask task2) {
+            if (task1.priority != task2.priority) {
+                return task1.priority < task2.priority ? -1 : 1;
+            }
+            return Float.compare(task1.distance, task2.distance);
         }
     }
 }
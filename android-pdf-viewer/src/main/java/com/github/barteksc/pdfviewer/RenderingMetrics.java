@@ -0,0 +1,193 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.util.SparseArray;
+
+/**
+ * Snapshot of rendering statistics of {@link PDFView}, see {@link PDFView#getRenderingMetrics()}.
+ * Statistics are collected since the document was loaded.
+ * <p>
+ * Render latencies are counted in histograms with {@link #HISTOGRAM_BUCKETS} buckets,
+ * bucket {@code i} counts renders shorter than {@link #getBucketUpperBound(int)} milliseconds
+ * and not counted in previous buckets, the last bucket counts all longer renders.
+ * <p>
+ * Render latency is the time of Pdfium rendering alone. Time a rendering thread waited for other threads
+ * rendering the same document, or any document as Pdfium renders one page at a time in the whole process,
+ * is counted separately as lock wait.
+ */
+public class RenderingMetrics {
+
+    public static final int HISTOGRAM_BUCKETS = 12;
+
+    private final int renderCount;
+    private final long totalRenderTime;
+    private final int[] renderLatencyHistogram;
+    private final SparseArray<int[]> pageRenderLatencyHistograms;
+    private final long totalLockWaitTime;
+    private final int[] lockWaitHistogram;
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final int cacheHits;
+    private final int cacheMisses;
+    private final int cacheEvictions;
+    private final long cachedBytes;
+    private final long pooledBytes;
+    private final int wastedRenders;
+    private final int cancelledTasks;
+    private final long timeToFirstTile;
+    private final long timeToFirstPixel;
+    private final long timeToSharp;
+
+    RenderingMetrics(int renderCount, long totalRenderTime, int[] renderLatencyHistogram,
+                     SparseArray<int[]> pageRenderLatencyHistograms, long totalLockWaitTime, int[] lockWaitHistogram,
+                     int queueDepth, int maxQueueDepth,
+                     int cacheHits, int cacheMisses, int cacheEvictions, long cachedBytes, long pooledBytes,
+                     int wastedRenders, int cancelledTasks, long timeToFirstTile, long timeToFirstPixel,
+                     long timeToSharp) {
+        this.renderCount = renderCount;
+        this.totalRenderTime = totalRenderTime;
+        this.renderLatencyHistogram = renderLatencyHistogram;
+        this.pageRenderLatencyHistograms = pageRenderLatencyHistograms;
+        this.totalLockWaitTime = totalLockWaitTime;
+        this.lockWaitHistogram = lockWaitHistogram;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.cacheEvictions = cacheEvictions;
+        this.cachedBytes = cachedBytes;
+        this.pooledBytes = pooledBytes;
+        this.wastedRenders = wastedRenders;
+        this.cancelledTasks = cancelledTasks;
+        this.timeToFirstTile = timeToFirstTile;
+        this.timeToFirstPixel = timeToFirstPixel;
+        this.timeToSharp = timeToSharp;
+    }
+
+    /** Get upper bound of histogram bucket in milliseconds, {@link Long#MAX_VALUE} for the last bucket */
+    public static long getBucketUpperBound(int bucket) {
+        return bucket >= HISTOGRAM_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /** Get histogram bucket of given latency in milliseconds */
+    static int getBucket(long latency) {
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BUCKETS - 1 && latency >= getBucketUpperBound(bucket)) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /** Number of parts and thumbnails rendered by Pdfium */
+    public int getRenderCount() {
+        return renderCount;
+    }
+
+    /** Total time spent in Pdfium rendering, without waiting for locks, in milliseconds */
+    public long getTotalRenderTime() {
+        return totalRenderTime;
+    }
+
+    /** Total time rendering threads waited for other threads before rendering, in milliseconds */
+    public long getTotalLockWaitTime() {
+        return totalLockWaitTime;
+    }
+
+    /** @return histogram of times rendering threads waited for other threads before rendering */
+    public int[] getLockWaitHistogram() {
+        return lockWaitHistogram.clone();
+    }
+
+    public int[] getRenderLatencyHistogram() {
+        return renderLatencyHistogram.clone();
+    }
+
+    /** @return histogram of render latencies of given page, null if page was not rendered */
+    public int[] getPageRenderLatencyHistogram(int page) {
+        int[] histogram = pageRenderLatencyHistograms.get(page);
+        return histogram != null ? histogram.clone() : null;
+    }
+
+    /** Number of rendering tasks waiting for a worker */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /** Number of parts requested by loader, which were already cached */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /** Number of parts requested by loader, which had to be rendered */
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public float getCacheHitRatio() {
+        int requests = cacheHits + cacheMisses;
+        return requests > 0 ? (float) cacheHits / requests : 0;
+    }
+
+    public int getCacheEvictions() {
+        return cacheEvictions;
+    }
+
+    /** Size of cached parts and thumbnails bitmaps, in bytes */
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /** Size of bitmaps kept for reuse, in bytes */
+    public long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /** Number of rendered parts which were not used */
+    public int getWastedRenders() {
+        return wastedRenders;
+    }
+
+    /** Number of queued tasks cancelled before rendering */
+    public int getCancelledTasks() {
+        return cancelledTasks;
+    }
+
+    /** Time from load start to the first rendered part, in milliseconds, -1 if nothing was rendered yet */
+    public long getTimeToFirstTile() {
+        return timeToFirstTile;
+    }
+
+    /**
+     * Time from load start to the first content shown, first page preview or rendered part,
+     * in milliseconds, -1 if nothing was shown yet
+     */
+    public long getTimeToFirstPixel() {
+        return timeToFirstPixel;
+    }
+
+    /**
+     * Time from the last loading of pages, which requested visible parts, until all visible parts were rendered
+     * and cached, in milliseconds, -1 if screen was not sharp yet
+     */
+    public long getTimeToSharp() {
+        return timeToSharp;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.graphics.RectF;
+
+import com.github.barteksc.pdfviewer.model.PagePart;
+
+/**
+ * Hash key of a page part or thumbnail. Page relative bounds are quantized, so bounds of the same row
+ * and column of the grid calculated for given zoom level always produce equal keys.
+ * Parts of the same bounds rendered at different zoom levels have different keys.
+ * Keys are mutable, so one instance can be reused for lookups without allocations.
+ */
+class TileKey {
+
+    private static final float QUANTIZATION = 1 << 16;
+
+    private int page;
+    private boolean thumbnail;
+    private int level;
+    private int left;
+    private int top;
+    private int right;
+    private int bottom;
+
+    TileKey() {
+    }
+
+    TileKey(int page, RectF pageRelativeBounds, boolean thumbnail, int level) {
+        set(page, pageRelativeBounds, thumbnail, level);
+    }
+
+    TileKey set(int page, RectF pageRelativeBounds, boolean thumbnail, int level) {
+        this.page = page;
+        this.thumbnail = thumbnail;
+        this.level = level;
+        this.left = quantize(pageRelativeBounds.left);
+        this.top = quantize(pageRelativeBounds.top);
+        this.right = quantize(pageRelativeBounds.right);
+        this.bottom = quantize(pageRelativeBounds.bottom);
+        return this;
+    }
+
+    TileKey set(PagePart part) {
+        return set(part.getPage(), part.getPageRelativeBounds(), part.isThumbnail(), part.getLevel());
+    }
+
+    TileKey copy() {
+        TileKey key = new TileKey();
+        key.page = page;
+        key.thumbnail = thumbnail;
+        key.level = level;
+        key.left = left;
+        key.top = top;
+        key.right = right;
+        key.bottom = bottom;
+        return key;
+    }
+
+    int getPage() {
+        return page;
+    }
+
+    private static int quantize(float value) {
+        return Math.round(value * QUANTIZATION);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof TileKey)) {
+            return false;
+        }
+        TileKey key = (TileKey) obj;
+        return key.page == page && key.thumbnail == thumbnail && key.level == level && key.left == left && key.top == top
+                && key.right == right && key.bottom == bottom;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = page;
+        result = 31 * result + (thumbnail ? 1 : 0);
+        result = 31 * result + level;
+        result = 31 * result + left;
+        result = 31 * result + top;
+        result = 31 * result + right;
+        result = 31 * result + bottom;
+        return result;
+    }
+}
@@ -69,6 +69,11 @@ public class Callbacks {
      */
     private LinkHandler linkHandler;
 
+    /**
+     * Call back object to call when all visible parts are rendered
+     */
+    private OnRenderingMetricsListener onRenderingMetricsListener;
+
     public void setOnLoadComplete(OnLoadCompleteListener onLoadCompleteListener) {
         this.onLoadCompleteListener = onLoadCompleteListener;
     }
@@ -162,4 +167,12 @@ public class Callbacks {
             linkHandler.handleLinkEvent(event);
         }
     }
+
+    public void setOnRenderingMetrics(OnRenderingMetricsListener onRenderingMetricsListener) {
+        this.onRenderingMetricsListener = onRenderingMetricsListener;
+    }
+
+    public OnRenderingMetricsListener getOnRenderingMetrics() {
+        return onRenderingMetricsListener;
+    }
 }
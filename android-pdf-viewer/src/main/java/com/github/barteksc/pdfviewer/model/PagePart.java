@@ -30,13 +30,31 @@ public class PagePart {
 
     private int cacheOrder;
 
+    /** Zoom level at which part was rendered, higher levels have higher resolution */
+    private int level;
+
+    /** True if part was rendered in lower resolution and will be replaced by full resolution one */
+    private boolean preview;
+
     public PagePart(int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder) {
+        this(page, renderedBitmap, pageRelativeBounds, thumbnail, cacheOrder, 0, false);
+    }
+
+    public PagePart(int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder,
+                    int level) {
+        this(page, renderedBitmap, pageRelativeBounds, thumbnail, cacheOrder, level, false);
+    }
+
+    public PagePart(int page, Bitmap renderedBitmap, RectF pageRelativeBounds, boolean thumbnail, int cacheOrder,
+                    int level, boolean preview) {
         super();
         this.page = page;
         this.renderedBitmap = renderedBitmap;
         this.pageRelativeBounds = pageRelativeBounds;
         this.thumbnail = thumbnail;
         this.cacheOrder = cacheOrder;
+        this.level = level;
+        this.preview = preview;
     }
 
     public int getCacheOrder() {
@@ -59,6 +77,14 @@ public class PagePart {
         return thumbnail;
     }
 
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isPreview() {
+        return preview;
+    }
+
     public void setCacheOrder(int cacheOrder) {
         this.cacheOrder = cacheOrder;
     }
@@ -71,10 +97,22 @@ public class PagePart {
 
         PagePart part = (PagePart) obj;
         return part.getPage() == page
-                && part.getPageRelativeBounds().left == pageRelativeBounds.left
-                && part.getPageRelativeBounds().right == pageRelativeBounds.right
-                && part.getPageRelativeBounds().top == pageRelativeBounds.top
-                && part.getPageRelativeBounds().bottom == pageRelativeBounds.bottom;
+                && part.getLevel() == level
+                && Float.compare(part.getPageRelativeBounds().left, pageRelativeBounds.left) == 0
+                && Float.compare(part.getPageRelativeBounds().right, pageRelativeBounds.right) == 0
+                && Float.compare(part.getPageRelativeBounds().top, pageRelativeBounds.top) == 0
+                && Float.compare(part.getPageRelativeBounds().bottom, pageRelativeBounds.bottom) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = page;
+        result = 31 * result + level;
+        result = 31 * result + Float.floatToIntBits(pageRelativeBounds.left);
+        result = 31 * result + Float.floatToIntBits(pageRelativeBounds.top);
+        result = 31 * result + Float.floatToIntBits(pageRelativeBounds.right);
+        result = 31 * result + Float.floatToIntBits(pageRelativeBounds.bottom);
+        return result;
     }
 
 }
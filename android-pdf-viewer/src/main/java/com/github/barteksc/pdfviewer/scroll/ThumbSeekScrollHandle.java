@@ -254,6 +254,12 @@ public class ThumbSeekScrollHandle extends View implements ScrollHandle {
         }
     }
 
+    /** Release rendered thumbnails, they are rendered again when drawn */
+    public void releaseThumbnails() {
+        imageCached.clear();
+        postInvalidate();
+    }
+
     public void destory() {
         canceled = true;
         imageCached.clear();
@@ -284,8 +290,13 @@ public class ThumbSeekScrollHandle extends View implements ScrollHandle {
             while ((task = renderTask.pollTask()) != null) {
                 final Rect rect = documentSource.fitInPage(task.pageNumber, task.width, task.height);
                 Bitmap renderBitmap = imageCached.get(task.pageNumber);
-                if (renderBitmap == null || renderBitmap.isRecycled()) {
-                    imageCached.put(task.pageNumber, documentSource.renderPage(task.pageNumber, rect));
+                PDFView view = pdfView;
+                if ((renderBitmap == null || renderBitmap.isRecycled()) && view != null) {
+                    // rendered through the view, so pages opened by view are not closed while rendering
+                    renderBitmap = view.renderDocumentPage(task.pageNumber, rect.width(), rect.height());
+                    if (renderBitmap != null) {
+                        imageCached.put(task.pageNumber, renderBitmap);
+                    }
                 }
                 onPageRender(imageCached.get(task.pageNumber), rect, task.pageNumber, task.width, task.height);
             }
@@ -17,6 +17,8 @@ package com.github.barteksc.pdfviewer.source;
 
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.os.ParcelFileDescriptor;
 
 import com.github.barteksc.pdfviewer.util.FileUtils;
@@ -40,4 +42,15 @@ public class AssetSource extends DocumentSource {
         ParcelFileDescriptor pfd = ParcelFileDescriptor.open(f, ParcelFileDescriptor.MODE_READ_ONLY);
         return core.newDocument(pfd, password);
     }
+
+    @Override
+    public String getDocumentId(Context context) {
+        try {
+            // assets change only with application update
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            return "asset:" + assetName + ":" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 Bartosz Schiller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer.source;
+
+import android.content.Context;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Thin wrapper over {@link InputStreamSource} for documents held in a {@link ByteBuffer}. Remaining content
+ * of the buffer is read as a stream and spooled to a temporary file exactly like a stream is, so it's neither
+ * faster nor lighter on heap than wrapping the buffer in a stream by hand, it only saves writing that stream.
+ * Position of the buffer is not changed.
+ */
+public class ByteBufferSource extends DocumentSource {
+
+    private ByteBuffer buffer;
+
+    public ByteBufferSource(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    protected PdfDocument createDocument(Context context, PdfiumCore core, String password) throws IOException {
+        return new InputStreamSource(new ByteBufferInputStream(buffer.duplicate()))
+                .createDocument(context, core, password);
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -32,6 +32,15 @@ public abstract class DocumentSource {
 
     abstract PdfDocument createDocument(Context context, PdfiumCore core, String password) throws IOException;
 
+    /**
+     * Get identity of the document, used as a key of persistent caches. It should change whenever content changes.
+     *
+     * @return document id or null if document cannot be identified
+     */
+    public String getDocumentId(Context context) {
+        return null;
+    }
+
     public PdfDocument createSource(Context context, PdfiumCore core, String password) throws IOException {
         mPdfiumCore = core;
         mPdfDocument = createDocument(context, core, password);
@@ -48,6 +57,9 @@ public abstract class DocumentSource {
 
     /**
      * 获取页面Bitmap，自动调整到对应的rect中
+     * <p>
+     * Rendering is not synchronized with {@link com.github.barteksc.pdfviewer.PDFView} showing the document,
+     * use {@link com.github.barteksc.pdfviewer.PDFView#renderDocumentPage(int, int, int)} then.
      * @param pageIndex
      * @param rect
      * @return
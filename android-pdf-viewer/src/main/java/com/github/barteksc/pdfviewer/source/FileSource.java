@@ -37,4 +37,9 @@ public class FileSource extends DocumentSource {
         ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
         return core.newDocument(pfd, password);
     }
+
+    @Override
+    public String getDocumentId(Context context) {
+        return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
 }
@@ -16,14 +16,21 @@
 package com.github.barteksc.pdfviewer.source;
 
 import android.content.Context;
+import android.os.ParcelFileDescriptor;
 
-import com.github.barteksc.pdfviewer.util.Util;
+import com.github.barteksc.pdfviewer.util.FileUtils;
 import com.shockwave.pdfium.PdfDocument;
 import com.shockwave.pdfium.PdfiumCore;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Stream is written to a temporary file in cache directory, which is opened through file descriptor
+ * and deleted right away, so document content is not held on Java heap as a whole, only small chunks
+ * of it pass through heap while writing. Open descriptor keeps file data until the document is closed.
+ */
 public class InputStreamSource extends DocumentSource {
 
     private InputStream inputStream;
@@ -34,6 +41,12 @@ public class InputStreamSource extends DocumentSource {
 
     @Override
     protected PdfDocument createDocument(Context context, PdfiumCore core, String password) throws IOException {
-        return core.newDocument(Util.toByteArray(inputStream), password);
+        File file = FileUtils.spoolToTempFile(inputStream, context.getCacheDir());
+        try {
+            ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            return core.newDocument(pfd, password);
+        } finally {
+            file.delete();
+        }
     }
 }
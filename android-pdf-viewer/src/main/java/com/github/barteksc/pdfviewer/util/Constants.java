@@ -29,15 +29,110 @@ public class Constants {
      */
     public static float PART_SIZE = 256;
 
+    /** Minimum size of parts chosen in adaptive tiling mode */
+    public static int MIN_PART_SIZE = 128;
+
+    /** Maximum size of parts chosen in adaptive tiling mode */
+    public static int MAX_PART_SIZE = 512;
+
+    /** Sizes of parts chosen in adaptive tiling mode are multiples of this step */
+    public static int PART_SIZE_STEP = 64;
+
+    /** Target rendering time of one part in adaptive tiling mode, in milliseconds */
+    public static float ADAPTIVE_PART_TIME = 40;
+
     /** Part of document above and below screen that should be preloaded, in dp */
     public static int PRELOAD_OFFSET = 20;
 
+    /** Multiplier of {@link #PRELOAD_OFFSET} applied in the direction of scrolling */
+    public static int PRELOAD_DIRECTION_MULTIPLIER = 4;
+
+    /**
+     * Fling velocity in dp per second, above which only thumbnails are loaded for passed pages
+     * and thumbnails of pages where fling ends are prefetched
+     */
+    public static int FAST_FLING_VELOCITY = 2500;
+
+    /**
+     * Number of zoom levels per doubling of zoom. Parts are rendered at the zoom of the level, so they can be
+     * reused while zoom changes within the level, and are drawn scaled until parts of a new level are rendered.
+     */
+    public static int ZOOM_LEVELS_PER_OCTAVE = 4;
+
+    /**
+     * Estimated rendering time of a part in milliseconds, above which preview of the part is rendered first,
+     * if progressive rendering is enabled. Time of Pdfium rendering alone is estimated, waiting for other
+     * rendering threads is not counted.
+     */
+    public static float PROGRESSIVE_RENDERING_TIME = 50;
+
+    /** Ratio of preview size to full part size in progressive rendering */
+    public static float PROGRESSIVE_PREVIEW_RATIO = 0.5f;
+
+    /**
+     * Maximum number of rendering threads used by default, actual number depends also on available processors.
+     * Pdfium renders one page at a time in the whole process, so additional threads only overlap
+     * bitmap allocation, disk cache reads and post-processing with rendering. Two threads keep the renderer
+     * busy unless work outside Pdfium takes longer than rendering, more threads mostly wait for the lock,
+     * see the benchmark in RenderingHandlerTest.
+     */
+    public static int MAX_RENDERING_THREADS = 2;
+
     public static class Cache {
 
-        /** The size of the cache (number of bitmaps kept) */
-        public static int CACHE_SIZE = 120;
+        /**
+         * The size of the cache (number of bitmaps kept). If positive, it's used instead of
+         * {@link #CACHE_MEMORY_RATIO} and mapped onto the byte budget as number of full quality parts
+         * of {@link Constants#PART_SIZE}.
+         *
+         * @deprecated cache is limited by size of bitmaps, use {@link #CACHE_MEMORY_RATIO}
+         * or {@link com.github.barteksc.pdfviewer.PDFView.Configurator#cacheSize(long)}
+         */
+        @Deprecated
+        public static int CACHE_SIZE = 0;
 
+        /**
+         * Part of the application memory class (see {@link android.app.ActivityManager#getMemoryClass()})
+         * used by cache of rendered parts, if cache size is not set explicitly
+         */
+        public static float CACHE_MEMORY_RATIO = 0.25f;
+
+        /**
+         * Minimum number of cached thumbnails. Cache grows to hold thumbnails of all pages loaded at once,
+         * including preloaded pages and pages visible when fling ends.
+         */
         public static int THUMBNAILS_CACHE_SIZE = 8;
+
+        /**
+         * Part of the size of rendered parts cache, which cached thumbnails may use in addition to it.
+         * Least recently used thumbnails are evicted above it, even if there are fewer of them
+         * than loaded pages.
+         */
+        public static float THUMBNAILS_MEMORY_RATIO = 0.25f;
+
+        /** Maximum size of bitmaps kept for reuse after they are evicted from cache, in bytes */
+        public static int BITMAP_POOL_SIZE = 8 * 1024 * 1024;
+
+        /** Directory in application cache directory, where page sizes of opened documents are stored */
+        public static String GEOMETRY_CACHE_DIR = "pdfviewer-geometry";
+
+        /** Maximum number of documents with stored page sizes, least recently used are deleted */
+        public static int GEOMETRY_CACHE_FILES = 64;
+
+        /** Directory in application cache directory, where rendered parts are stored */
+        public static String DISK_CACHE_DIR = "pdfviewer-tiles";
+
+        /** Maximum size of rendered parts stored on disk, in bytes */
+        public static long DISK_CACHE_SIZE = 50 * 1024 * 1024;
+
+        /**
+         * Maximum number of pages opened in Pdfium, least recently used pages are closed,
+         * except pages which are being rendered
+         */
+        public static int MAX_OPENED_PAGES = 16;
+
+        /** Weight of memory quota of the focused view, when views share rendering, other views have weight 1 */
+        public static int FOCUSED_VIEW_WEIGHT = 2;
     }
 
     public static class Pinch {
@@ -22,9 +22,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 public class FileUtils {
 
+    private static final int SPOOL_BUFFER_SIZE = 256 * 1024;
+
     private FileUtils() {
         // Prevents instantiation
     }
@@ -59,4 +65,44 @@ public class FileUtils {
             }
         }
     }
+
+    /**
+     * Write stream to a new temporary file in given directory, in chunks of a small direct buffer, so heap use
+     * is bounded and doesn't grow with stream size. It's not zero: streams other than {@link java.io.FileInputStream}
+     * are read through a small heap array of the channel wrapping them. Stream is closed, file is deleted
+     * if writing fails.
+     *
+     * @return created file, caller is responsible for deleting it
+     */
+    public static File spoolToTempFile(InputStream inputStream, File directory) throws IOException {
+        File file = File.createTempFile("pdfview-", ".pdf", directory);
+        ReadableByteChannel input = Channels.newChannel(inputStream);
+        FileOutputStream outputStream = null;
+        boolean success = false;
+        try {
+            outputStream = new FileOutputStream(file);
+            FileChannel output = outputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SPOOL_BUFFER_SIZE);
+            while (input.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                buffer.clear();
+            }
+            success = true;
+            return file;
+        } finally {
+            try {
+                input.close();
+            } finally {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+                if (!success) {
+                    file.delete();
+                }
+            }
+        }
+    }
 }
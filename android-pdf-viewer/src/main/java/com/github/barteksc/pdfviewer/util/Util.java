@@ -15,12 +15,18 @@
  */
 package com.github.barteksc.pdfviewer.util;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Trace;
 import android.util.TypedValue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class Util {
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
@@ -38,4 +44,62 @@ public class Util {
         }
         return os.toByteArray();
     }
+
+    /**
+     * Get default size of rendered parts cache in bytes, based on device memory class,
+     * or on deprecated {@link Constants.Cache#CACHE_SIZE} if it's set
+     */
+    @SuppressWarnings("deprecation")
+    public static long getDefaultCacheSize(Context context) {
+        if (Constants.Cache.CACHE_SIZE > 0) {
+            long partBytes = (long) (Constants.PART_SIZE * Constants.PART_SIZE) * 4;
+            return Constants.Cache.CACHE_SIZE * partBytes;
+        }
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClass = am.getMemoryClass() * 1024L * 1024L;
+        return (long) (memoryClass * Constants.Cache.CACHE_MEMORY_RATIO);
+    }
+
+    /** Get default number of rendering threads, leaving one processor for UI thread */
+    public static int getDefaultRenderingThreads() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(processors - 1, Constants.MAX_RENDERING_THREADS));
+    }
+
+    /** Get number of bytes used to store bitmap pixels */
+    public static int getBitmapByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /** Get hex encoded SHA-1 of given string, e.g. to use it as a file name */
+    public static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    /** Begin trace section visible in systrace, on devices which support it */
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    /** End trace section started with {@link #beginSection(String)} */
+    public static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
 }
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that {@link BitmapPool} reuses bitmaps of the same size and config instead of allocating new ones,
+ * and evicts bitmaps of other sizes when it's full.
+ */
+public class BitmapPoolTest {
+
+    private static final int TILE_SIZE = 256;
+
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    private BitmapPool pool;
+
+    @Before
+    public void setUp() {
+        pool = createPool(16 * TILE_BYTES);
+    }
+
+    @Test
+    public void noAllocationsAfterWarmUp() {
+        Bitmap[] bitmaps = new Bitmap[6];
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < bitmaps.length; i++) {
+                bitmaps[i] = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+            }
+            for (Bitmap bitmap : bitmaps) {
+                pool.put(bitmap);
+            }
+        }
+
+        // only the first round allocated bitmaps
+        verify(pool, times(bitmaps.length)).createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        assertEquals(bitmaps.length, pool.getMissCount());
+        assertEquals(999 * bitmaps.length, pool.getHitCount());
+        assertEquals(0, pool.getEvictionCount());
+        assertEquals(bitmaps.length * TILE_BYTES, pool.getCurrentBytes());
+    }
+
+    @Test
+    public void sameBitmapReused() {
+        Bitmap bitmap = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.getCurrentBytes());
+        // callers overwrite all pixels, so reused bitmap is not cleared
+        verify(bitmap, never()).eraseColor(anyInt());
+    }
+
+    @Test
+    public void differentSizeOrConfigNotReused() {
+        Bitmap bitmap = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertNotSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE / 2, Bitmap.Config.ARGB_8888));
+        assertNotSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565));
+        assertEquals(3, pool.getMissCount());
+        assertEquals(0, pool.getHitCount());
+        assertSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void fullPoolEvictsBitmapsOfOtherSize() {
+        pool = createPool(2 * TILE_BYTES);
+        Bitmap tile1 = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap tile2 = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap wide = pool.get(2 * TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(tile1);
+        pool.put(tile2);
+
+        // bitmap of a new size takes the whole pool, smaller bitmaps are recycled
+        pool.put(wide);
+        assertEquals(2, pool.getEvictionCount());
+        verify(tile1).recycle();
+        verify(tile2).recycle();
+        assertEquals(2 * TILE_BYTES, pool.getCurrentBytes());
+
+        assertNotSame(tile1, pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertSame(wide, pool.get(2 * TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void bitmapBiggerThanPoolRecycled() {
+        pool = createPool(TILE_BYTES);
+        Bitmap wide = pool.get(2 * TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(wide);
+
+        verify(wide).recycle();
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(0, pool.getCurrentBytes());
+    }
+
+    @Test
+    public void immutableBitmapNotPooled() {
+        Bitmap bitmap = mockBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        when(bitmap.isMutable()).thenReturn(false);
+        pool.put(bitmap);
+
+        verify(bitmap).recycle();
+        assertEquals(0, pool.getCurrentBytes());
+    }
+
+    @Test
+    public void trimToSizeRecyclesBitmaps() {
+        Bitmap tile1 = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap tile2 = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        pool.put(tile1);
+        pool.put(tile2);
+
+        pool.setMaxBytes(TILE_BYTES);
+        assertEquals(TILE_BYTES, pool.getCurrentBytes());
+        assertEquals(1, pool.getEvictionCount());
+
+        pool.clear();
+        assertEquals(0, pool.getCurrentBytes());
+        verify(tile1).recycle();
+        verify(tile2).recycle();
+    }
+
+    /** Pool allocating mocked bitmaps, as bitmaps cannot be created in unit tests */
+    private static BitmapPool createPool(long maxBytes) {
+        BitmapPool pool = spy(new BitmapPool(maxBytes));
+        doAnswer(new Answer<Bitmap>() {
+            @Override
+            public Bitmap answer(InvocationOnMock invocation) {
+                return mockBitmap((Integer) invocation.getArgument(0), (Integer) invocation.getArgument(1),
+                        (Bitmap.Config) invocation.getArgument(2));
+            }
+        }).when(pool).createBitmap(anyInt(), anyInt(), any(Bitmap.Config.class));
+        return pool;
+    }
+
+    private static Bitmap mockBitmap(int width, int height, Bitmap.Config config) {
+        int pixelBytes = config == Bitmap.Config.ARGB_8888 ? 4 : 2;
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.getWidth()).thenReturn(width);
+        when(bitmap.getHeight()).thenReturn(height);
+        when(bitmap.getConfig()).thenReturn(config);
+        when(bitmap.isMutable()).thenReturn(true);
+        when(bitmap.getRowBytes()).thenReturn(width * pixelBytes);
+        when(bitmap.getAllocationByteCount()).thenReturn(width * height * pixelBytes);
+        return bitmap;
+    }
+}
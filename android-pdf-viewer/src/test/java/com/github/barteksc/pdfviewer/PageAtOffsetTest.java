@@ -0,0 +1,209 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks binary search of {@link PdfFile#findPageAtOffset(float[], float, float)} against the linear scan
+ * it replaced, and measures both of them for growing documents.
+ */
+public class PageAtOffsetTest {
+
+    private static final float[] ZOOMS = {0.5f, 1f, 1.7f, 3f, 10f};
+
+    @Test
+    public void emptyDocument() {
+        assertEquals(0, PdfFile.findPageAtOffset(new float[0], 100, 1));
+        assertEquals(linearScan(new float[0], 100, 1), PdfFile.findPageAtOffset(new float[0], 100, 1));
+    }
+
+    @Test
+    public void offsetBeforeFirstPage() {
+        float[] offsets = offsets(new float[]{100, 200, 300}, 10);
+        for (float zoom : ZOOMS) {
+            assertEquals(0, PdfFile.findPageAtOffset(offsets, -50, zoom));
+            assertEquals(0, PdfFile.findPageAtOffset(offsets, 0, zoom));
+            assertSameAsLinearScan(offsets, -50, zoom);
+            assertSameAsLinearScan(offsets, 0, zoom);
+        }
+    }
+
+    @Test
+    public void offsetPastEnd() {
+        float[] offsets = offsets(new float[]{100, 200, 300}, 10);
+        for (float zoom : ZOOMS) {
+            assertEquals(2, PdfFile.findPageAtOffset(offsets, 10000 * zoom, zoom));
+            assertSameAsLinearScan(offsets, 10000 * zoom, zoom);
+        }
+    }
+
+    @Test
+    public void exactPageBoundaries() {
+        float[] offsets = offsets(new float[]{100, 200, 300, 400}, 0);
+        for (float zoom : ZOOMS) {
+            for (int page = 0; page < offsets.length; page++) {
+                float boundary = offsets[page] * zoom;
+                // page starting exactly at the offset is not before it
+                assertEquals(Math.max(0, page - 1), PdfFile.findPageAtOffset(offsets, boundary, zoom));
+                assertEquals(page, PdfFile.findPageAtOffset(offsets, Math.nextUp(boundary), zoom));
+                assertSameAsLinearScan(offsets, boundary, zoom);
+                assertSameAsLinearScan(offsets, Math.nextUp(boundary), zoom);
+                assertSameAsLinearScan(offsets, Math.nextDown(boundary), zoom);
+            }
+        }
+    }
+
+    @Test
+    public void offsetInSpacing() {
+        float[] offsets = offsets(new float[]{100, 200, 300}, 50);
+        // spacing between the first and second page spans 100..150
+        assertEquals(0, PdfFile.findPageAtOffset(offsets, 125, 1));
+        assertEquals(0, PdfFile.findPageAtOffset(offsets, 150, 1));
+        assertEquals(1, PdfFile.findPageAtOffset(offsets, 151, 1));
+        for (float zoom : ZOOMS) {
+            for (int page = 1; page < offsets.length; page++) {
+                float spacingStart = (offsets[page] - 50) * zoom;
+                float spacingEnd = offsets[page] * zoom;
+                assertSameAsLinearScan(offsets, spacingStart, zoom);
+                assertSameAsLinearScan(offsets, (spacingStart + spacingEnd) / 2, zoom);
+                assertSameAsLinearScan(offsets, spacingEnd, zoom);
+            }
+        }
+    }
+
+    @Test
+    public void samePageSizes() {
+        float[] sizes = new float[1000];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 842;
+        }
+        float[] offsets = offsets(sizes, 8);
+        for (float zoom : ZOOMS) {
+            for (float offset = -100; offset < (offsets[offsets.length - 1] + 1000) * zoom; offset += 97.3f) {
+                assertSameAsLinearScan(offsets, offset, zoom);
+            }
+        }
+    }
+
+    @Test
+    public void randomDocuments() {
+        Random random = new Random(42);
+        for (int document = 0; document < 200; document++) {
+            float[] sizes = new float[1 + random.nextInt(300)];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = 1 + random.nextFloat() * 2000;
+            }
+            float[] offsets = offsets(sizes, random.nextInt(3) * random.nextInt(40));
+            float zoom = ZOOMS[random.nextInt(ZOOMS.length)];
+            float length = (offsets[offsets.length - 1] + sizes[sizes.length - 1]) * zoom;
+            for (int i = 0; i < 200; i++) {
+                assertSameAsLinearScan(offsets, -100 + random.nextFloat() * (length + 200), zoom);
+            }
+            for (float pageOffset : offsets) {
+                assertSameAsLinearScan(offsets, pageOffset * zoom, zoom);
+            }
+        }
+    }
+
+    /** Prints time of one lookup, no assertions are made as times depend on the machine */
+    @Test
+    public void benchmark() {
+        Random random = new Random(42);
+        int[] documentSizes = {10, 100, 1000, 3000, 10000};
+        float[] queries = new float[1000];
+        int checksum = 0;
+        for (int pagesCount : documentSizes) {
+            float[] sizes = new float[pagesCount];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = 500 + random.nextFloat() * 1000;
+            }
+            float[] offsets = offsets(sizes, 10);
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = random.nextFloat() * (offsets[offsets.length - 1] + 1000);
+            }
+            int rounds = Math.max(20, 20000000 / (pagesCount * queries.length));
+            // warm up both implementations before measuring
+            for (int i = 0; i < 3; i++) {
+                checksum += measureLinearScan(offsets, queries, rounds) > 0 ? 1 : 0;
+                checksum += measureBinarySearch(offsets, queries, rounds) > 0 ? 1 : 0;
+            }
+            long linear = measureLinearScan(offsets, queries, rounds);
+            long binary = measureBinarySearch(offsets, queries, rounds);
+            long lookups = (long) rounds * queries.length;
+            System.out.println(String.format("getPageAtOffset, %d pages: linear scan %.1f ns, binary search %.1f ns",
+                    pagesCount, (double) linear / lookups, (double) binary / lookups));
+        }
+        System.out.println("checksum " + checksum);
+    }
+
+    private static long measureLinearScan(float[] offsets, float[] queries, int rounds) {
+        int sum = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (float query : queries) {
+                sum += linearScan(offsets, query, 1);
+            }
+        }
+        long time = System.nanoTime() - start;
+        return sum >= 0 ? time : -time;
+    }
+
+    private static long measureBinarySearch(float[] offsets, float[] queries, int rounds) {
+        int sum = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (float query : queries) {
+                sum += PdfFile.findPageAtOffset(offsets, query, 1);
+            }
+        }
+        long time = System.nanoTime() - start;
+        return sum >= 0 ? time : -time;
+    }
+
+    private static void assertSameAsLinearScan(float[] offsets, float offset, float zoom) {
+        assertEquals("offset " + offset + ", zoom " + zoom,
+                linearScan(offsets, offset, zoom), PdfFile.findPageAtOffset(offsets, offset, zoom));
+    }
+
+    /** Page offsets calculated like in {@link PdfFile}, from primary sizes of pages and spacing between them */
+    private static float[] offsets(float[] sizes, int spacing) {
+        float[] offsets = new float[sizes.length];
+        float offset = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            offsets[i] = offset + i * spacing;
+            offset += sizes[i];
+        }
+        return offsets;
+    }
+
+    /** Previous implementation of {@link PdfFile#getPageAtOffset(float, float)} */
+    private static int linearScan(float[] pageOffsets, float offset, float zoom) {
+        int currentPage = 0;
+        for (float off : pageOffsets) {
+            if (off * zoom >= offset) {
+                break;
+            }
+            currentPage++;
+        }
+
+        return --currentPage >= 0 ? currentPage : 0;
+    }
+}
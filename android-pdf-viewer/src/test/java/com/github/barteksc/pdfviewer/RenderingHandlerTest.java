@@ -0,0 +1,227 @@
+/**
+ * Copyright 2017 Bartosz Schiller
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.barteksc.pdfviewer;
+
+import android.graphics.RectF;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static com.github.barteksc.pdfviewer.RenderingHandler.PRIORITY_PRELOAD;
+import static com.github.barteksc.pdfviewer.RenderingHandler.PRIORITY_VISIBLE;
+import static com.github.barteksc.pdfviewer.RenderingHandler.PRIORITY_VISIBLE_THUMBNAIL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks order in which workers take tasks from {@link RenderingHandler} and measures tiles per second
+ * of a worker pool, which renders with one process-wide lock like Pdfium does.
+ */
+public class RenderingHandlerTest {
+
+    private static final int PAGES_COUNT = 100;
+
+    private RenderingHandler handler;
+
+    @Before
+    public void setUp() {
+        handler = createHandler();
+    }
+
+    @Test
+    public void tasksTakenByPriorityThenDistance() {
+        addTask(0, 0, PRIORITY_PRELOAD, 10);
+        addTask(1, 0, PRIORITY_VISIBLE, 300);
+        addTask(2, 0, PRIORITY_PRELOAD, 5);
+        addTask(3, 0, PRIORITY_VISIBLE, 100);
+        addTask(4, 0, PRIORITY_VISIBLE_THUMBNAIL, 900);
+
+        assertPolledPages(4, 3, 1, 2, 0);
+        assertNull(handler.pollTask());
+    }
+
+    @Test
+    public void requestedTaskGetsNewPriority() {
+        addTask(0, 0, PRIORITY_VISIBLE, 10);
+        addTask(1, 0, PRIORITY_VISIBLE, 20);
+        addTask(2, 0, PRIORITY_PRELOAD, 30);
+
+        // viewport moved, page 2 became visible and page 0 is only preloaded
+        handler.beginPass();
+        addTask(0, 0, PRIORITY_PRELOAD, 40);
+        addTask(1, 0, PRIORITY_VISIBLE, 20);
+        addTask(2, 0, PRIORITY_VISIBLE, 10);
+        handler.endPass();
+
+        assertPolledPages(2, 1, 0);
+    }
+
+    @Test
+    public void taskNotRequestedInPassIsCancelled() {
+        addTask(0, 0, PRIORITY_VISIBLE, 10);
+        addTask(1, 0, PRIORITY_VISIBLE, 20);
+
+        handler.beginPass();
+        addTask(1, 0, PRIORITY_VISIBLE, 20);
+        handler.endPass();
+
+        assertEquals(1, handler.getCancelledTasksCount());
+        assertEquals(1, handler.getQueuedTasksCount());
+        assertPolledPages(1);
+    }
+
+    @Test
+    public void sameTaskQueuedOnce() {
+        addTask(0, 0, PRIORITY_PRELOAD, 10);
+        addTask(0, 0, PRIORITY_VISIBLE, 5);
+        addTask(1, 0, PRIORITY_VISIBLE, 7);
+
+        assertEquals(2, handler.getQueuedTasksCount());
+        assertPolledPages(0, 1);
+    }
+
+    @Test
+    public void taskInFlightNotQueuedAgain() {
+        addTask(0, 0, PRIORITY_VISIBLE, 10);
+        assertPolledPages(0);
+
+        addTask(0, 0, PRIORITY_VISIBLE, 10);
+        assertEquals(0, handler.getQueuedTasksCount());
+        assertEquals(1, handler.getInFlightTasksCount());
+    }
+
+    @Test
+    public void queuedTaskGetsNewSize() {
+        addTask(0, 0, PRIORITY_VISIBLE, 10);
+        handler.addRenderingTask(0, 512, 1024, bounds(0), false, 0, 0, true, false, PRIORITY_VISIBLE, 10);
+
+        RenderingHandler.RenderingTask task = handler.pollTask();
+        assertEquals(512, task.width, 0);
+        assertEquals(1024, task.height, 0);
+    }
+
+    @Test
+    public void cancelledPageTasksCanBeQueuedAgain() {
+        addTask(0, 0, PRIORITY_VISIBLE, 10);
+        addTask(1, 0, PRIORITY_VISIBLE, 20);
+        addTask(1, 1, PRIORITY_VISIBLE, 30);
+        assertPolledPages(0);
+
+        boolean[] pages = new boolean[PAGES_COUNT];
+        pages[0] = true;
+        pages[1] = true;
+        handler.cancelPageTasks(pages);
+        assertEquals(0, handler.getQueuedTasksCount());
+        assertEquals(0, handler.getInFlightTasksCount());
+        assertNull(handler.pollTask());
+
+        addTask(0, 0, PRIORITY_VISIBLE, 10);
+        assertPolledPages(0);
+    }
+
+    /**
+     * Prints tiles per second of 1 to 4 workers taking tasks from one handler. Pdfium rendering is simulated
+     * by parking under one lock, work done outside Pdfium (bitmap allocation, disk cache reads) by parking
+     * without it. No assertions are made as times depend on the machine.
+     */
+    @Test
+    public void benchmark() throws InterruptedException {
+        // microseconds of work outside the lock and under it per tile, and percentage of disk cache hits,
+        // which skip rendering
+        int[][] workloads = {
+                {1000, 4000, 0},
+                {4000, 4000, 0},
+                {2000, 4000, 50},
+        };
+        for (int[] workload : workloads) {
+            StringBuilder result = new StringBuilder(String.format(
+                    "unlocked %d us, locked %d us, disk hits %d%%:", workload[0], workload[1], workload[2]));
+            for (int workers = 1; workers <= 4; workers++) {
+                result.append(String.format(" %d workers %.0f tiles/s,", workers,
+                        measureTilesPerSecond(workers, workload[0], workload[1], workload[2])));
+            }
+            System.out.println(result.substring(0, result.length() - 1));
+        }
+    }
+
+    private static double measureTilesPerSecond(int workersCount, final int unlockedMicros,
+                                                final int lockedMicros, final int diskHitsPercent)
+            throws InterruptedException {
+        final RenderingHandler handler = createHandler();
+        final Object pdfiumLock = new Object();
+        int tilesCount = 60;
+        for (int i = 0; i < tilesCount; i++) {
+            handler.addRenderingTask(i % PAGES_COUNT, 256, 256, bounds(i / PAGES_COUNT), false, 0, 0, true, false,
+                    PRIORITY_VISIBLE, i);
+        }
+        Thread[] workers = new Thread[workersCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    RenderingHandler.RenderingTask task;
+                    while ((task = handler.pollTask()) != null) {
+                        LockSupport.parkNanos(unlockedMicros * 1000L);
+                        if (task.page % 10 < diskHitsPercent / 10) {
+                            continue;
+                        }
+                        synchronized (pdfiumLock) {
+                            LockSupport.parkNanos(lockedMicros * 1000L);
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return tilesCount * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static RenderingHandler createHandler() {
+        PdfFile pdfFile = mock(PdfFile.class);
+        when(pdfFile.getPagesCount()).thenReturn(PAGES_COUNT);
+        return new RenderingHandler(null, pdfFile, 1, null, null, null);
+    }
+
+    private void addTask(int page, int column, int priority, float distance) {
+        handler.addRenderingTask(page, 256, 256, bounds(column), false, 0, 0, true, false, priority, distance);
+    }
+
+    private void assertPolledPages(int... pages) {
+        for (int page : pages) {
+            assertEquals(page, handler.pollTask().page);
+        }
+    }
+
+    /** Bounds are set directly, so they don't depend on implementation of {@link RectF} in unit tests */
+    private static RectF bounds(int column) {
+        RectF bounds = new RectF();
+        bounds.left = column * 0.25f;
+        bounds.top = 0;
+        bounds.right = (column + 1) * 0.25f;
+        bounds.bottom = 0.25f;
+        return bounds;
+    }
+}